@@ -0,0 +1,65 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.List;
+
+// Patient and caregiver accounts. Usernames compare case-insensitively, like the tables'
+// default collation.
+public interface AccountRepository {
+
+    enum Kind {
+        PATIENT,
+        CAREGIVER
+    }
+
+    // Inserts the account, returns false if the username is already taken
+    boolean create(Kind kind, Credentials credentials) throws SQLException;
+
+    boolean exists(Kind kind, String username) throws SQLException;
+
+    // The stored credentials, or null if there is no such account
+    Credentials find(Kind kind, String username) throws SQLException;
+
+    // Replaces the salt and hash, such as after re-hashing with new settings
+    void update(Kind kind, Credentials credentials) throws SQLException;
+
+    // Every username, for warming UsernameFilter
+    List<String> usernames(Kind kind) throws SQLException;
+
+    final class Credentials {
+        private final String username;
+        private final byte[] salt;
+        private final byte[] hash;
+        private final int iterations;
+        private final int keyLength;
+
+        public Credentials(String username, byte[] salt, byte[] hash, int iterations, int keyLength) {
+            this.username = username;
+            this.salt = salt;
+            this.hash = hash;
+            this.iterations = iterations;
+            this.keyLength = keyLength;
+        }
+
+        // Getters
+        public String getUsername() {
+            return username;
+        }
+
+        public byte[] getSalt() {
+            return salt;
+        }
+
+        public byte[] getHash() {
+            return hash;
+        }
+
+        public int getIterations() {
+            return iterations;
+        }
+
+        public int getKeyLength() {
+            return keyLength;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package scheduler.model;
+
+import scheduler.db.AppointmentRepository;
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.DoseCache;
+import scheduler.db.Storage;
+import scheduler.db.WriteBehind;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collections;
+
+// Reserves and cancels appointments. The appointment and the outcome of a reservation are storage's own
+// types, see AppointmentRepository, so every backend and caller shares them.
+public class Appointment {
+
+    private Appointment() {
+    }
+
+    public static class AppointmentReserver {
+        private final String patientName;
+        private final Date time;
+        private final String vaccineName;
+        private AppointmentRepository.Outcome outcome;
+
+        public AppointmentReserver(String patientName, Date time, String vaccineName) {
+            this.patientName = patientName;
+            this.time = time;
+            this.vaccineName = vaccineName;
+        }
+
+        // Why the last call to reserve() did or did not book an appointment
+        public AppointmentRepository.Outcome getOutcome() {
+            return outcome;
+        }
+
+        // Claims a caregiver and a dose and books the appointment, all or nothing, see
+        // AppointmentRepository.reserve. Returns null if nothing was booked, see getOutcome().
+        public AppointmentRepository.Appointment reserve() throws SQLException {
+            if (WriteBehind.isActive()) {
+                return reserveWriteBehind(0);
+            }
+            AppointmentRepository.Reservation reservation =
+                    Storage.get().appointments().reserve(patientName, time, vaccineName);
+            outcome = reservation.getOutcome();
+            AppointmentRepository.Appointment booked = reservation.getAppointment();
+            if (booked == null) {
+                return null;
+            }
+            DoseCache.add(vaccineName, -1);
+            AvailabilityIndex.remove(time, booked.getCaregiverName());
+            return booked;
+        }
+
+        // Decides against the in-memory availability and doses and journals the booking, which the
+        // database gets later, see WriteBehind. waitId is the waitlist request it serves, or 0.
+        AppointmentRepository.Appointment reserveWriteBehind(long waitId) throws SQLException {
+            String caregiverName = WriteBehind.claimCaregiver(this.time);
+            if (caregiverName == null) {
+                outcome = AppointmentRepository.Outcome.NO_CAREGIVER;
+                return null;
+            }
+            if (!WriteBehind.takeDose(this.vaccineName)) {
+                WriteBehind.releaseCaregiver(this.time, caregiverName);
+                outcome = WriteBehind.hasVaccine(this.vaccineName) ? AppointmentRepository.Outcome.NOT_ENOUGH_DOSES
+                        : AppointmentRepository.Outcome.VACCINE_NOT_FOUND;
+                return null;
+            }
+            long apptId;
+            try {
+                apptId = Storage.get().appointments().nextId();
+            } catch (SQLException | RuntimeException e) {
+                WriteBehind.releaseCaregiver(this.time, caregiverName);
+                WriteBehind.releaseDose(this.vaccineName);
+                throw e;
+            }
+            WriteBehind.append(apptId, this.patientName, caregiverName, this.vaccineName, this.time, waitId);
+            outcome = AppointmentRepository.Outcome.RESERVED;
+            return new AppointmentRepository.Appointment(apptId, this.patientName, caregiverName, this.vaccineName,
+                    this.time);
+        }
+    }
+
+    public static class AppointmentCanceller {
+        private final long apptId;
+        private final String username;
+        private final boolean patient;
+
+        // username is the patient's, or the caregiver's if patient is false
+        public AppointmentCanceller(long apptId, String username, boolean patient) {
+            this.apptId = apptId;
+            this.username = username;
+            this.patient = patient;
+        }
+
+        // Deletes one of the user's upcoming appointments and offers its caregiver and dose to the
+        // waitlist, see AppointmentRepository.cancel. Returns null if the user has no such appointment.
+        public AppointmentRepository.Appointment cancel() throws SQLException {
+            // storage only learns of a journaled reservation once it is written
+            if (WriteBehind.isPending(apptId)) {
+                throw new SQLException("Appointment " + apptId + " is still being written");
+            }
+            AppointmentRepository.Appointment cancelled =
+                    Storage.get().appointments().cancel(apptId, username, patient);
+            if (cancelled == null) {
+                return null;
+            }
+            DoseCache.add(cancelled.getVaccineName(), 1);
+            AvailabilityIndex.add(cancelled.getTime(), cancelled.getCaregiverName());
+            Waitlist.availabilityAdded(Collections.singleton(cancelled.getTime()));
+            Waitlist.dosesAdded(cancelled.getVaccineName());
+            return cancelled;
+        }
+    }
+}
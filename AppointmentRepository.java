@@ -0,0 +1,159 @@
+package scheduler.db;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.List;
+
+// Appointments and the waitlist of patients waiting for one
+public interface AppointmentRepository {
+
+    enum Outcome {
+        RESERVED,
+        NO_CAREGIVER,
+        VACCINE_NOT_FOUND,
+        NOT_ENOUGH_DOSES
+    }
+
+    // A new appointment ID, unique across processes sharing the backend
+    long nextId() throws SQLException;
+
+    // Claims a caregiver available on the date and a dose of the vaccine and books the appointment, all or
+    // nothing: no caregiver or dose is ever handed to two reservations, and a failed reservation takes neither.
+    // A booked patient who was waiting for the date and vaccine leaves the waitlist.
+    Reservation reserve(String patientName, Date time, String vaccineName) throws SQLException;
+
+    // Queues the patient for the date and vaccine, returns false if they are already waiting for it
+    boolean addToWaitlist(String patientName, Date time, String vaccineName) throws SQLException;
+
+    // Takes the patient off the waitlist for the date and vaccine, returns false if they were not waiting for it
+    boolean leaveWaitlist(String patientName, Date time, String vaccineName) throws SQLException;
+
+    // Books the oldest batch of upcoming requests after WaitID after for one of the dates or vaccines (every
+    // upcoming request if both are empty) that can get a caregiver and a dose. Only requests whose date has a
+    // caregiver available and whose vaccine has doses left are taken, so a pass walks past the ones it cannot
+    // serve rather than stopping at them.
+    Match matchWaitlist(Collection<Date> dates, Collection<String> vaccines, long after) throws SQLException;
+
+    // The oldest batch of upcoming requests after WaitID after that matchWaitlist would take, without booking them
+    List<Request> waiting(Collection<Date> dates, Collection<String> vaccines, long after) throws SQLException;
+
+    // Up to limit of the user's appointments from the date on, ordered by time and ID. With a non-negative
+    // after, the page starts after the key (from, after), the time and ID of the last appointment of the
+    // previous page, whether or not that appointment still exists. Other party is the caregiver for a patient
+    // and vice versa.
+    List<Appointment> find(String username, boolean patient, Date from, long after, int limit) throws SQLException;
+
+    // Deletes one of the user's upcoming appointments (the patient's, or the caregiver's if patient is false) and
+    // hands its caregiver's availability and its dose back, all or nothing. Returns the cancelled appointment, or
+    // null if the user has no upcoming appointment with that ID.
+    Appointment cancel(long apptId, String username, boolean patient) throws SQLException;
+
+    final class Appointment {
+        private final long apptId;
+        private final String patientName;
+        private final String caregiverName;
+        private final String vaccineName;
+        private final Date time;
+
+        public Appointment(long apptId, String patientName, String caregiverName, String vaccineName, Date time) {
+            this.apptId = apptId;
+            this.patientName = patientName;
+            this.caregiverName = caregiverName;
+            this.vaccineName = vaccineName;
+            this.time = time;
+        }
+
+        // Getters
+        public long getApptId() {
+            return apptId;
+        }
+
+        public String getPatientName() {
+            return patientName;
+        }
+
+        public String getCaregiverName() {
+            return caregiverName;
+        }
+
+        public String getVaccineName() {
+            return vaccineName;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+    }
+
+    final class Reservation {
+        private final Outcome outcome;
+        private final Appointment appointment;
+
+        public Reservation(Outcome outcome, Appointment appointment) {
+            this.outcome = outcome;
+            this.appointment = appointment;
+        }
+
+        // Getters
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        // The booked appointment, null unless the outcome is RESERVED
+        public Appointment getAppointment() {
+            return appointment;
+        }
+    }
+
+    final class Match {
+        private final List<Appointment> booked;
+        private final long last;
+
+        public Match(List<Appointment> booked, long last) {
+            this.booked = booked;
+            this.last = last;
+        }
+
+        // Getters
+        public List<Appointment> getBooked() {
+            return booked;
+        }
+
+        // The WaitID of the last request in the batch, the next batch starts after it; -1 if there was none
+        public long getLast() {
+            return last;
+        }
+    }
+
+    final class Request {
+        private final long waitId;
+        private final String patientName;
+        private final String vaccineName;
+        private final Date time;
+
+        public Request(long waitId, String patientName, String vaccineName, Date time) {
+            this.waitId = waitId;
+            this.patientName = patientName;
+            this.vaccineName = vaccineName;
+            this.time = time;
+        }
+
+        // Getters
+        public long getWaitId() {
+            return waitId;
+        }
+
+        public String getPatientName() {
+            return patientName;
+        }
+
+        public String getVaccineName() {
+            return vaccineName;
+        }
+
+        public Date getTime() {
+            return time;
+        }
+    }
+}
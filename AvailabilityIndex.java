@@ -0,0 +1,125 @@
+package scheduler.db;
+
+import scheduler.util.Util;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// In-memory copy of the Availabilities table, kept current by this process's writes and
+// reconciled with the database periodically to pick up writes made by other processes.
+// Lookups return null while the index is cold or older than the staleness bound, and
+// callers then fall back to querying the database.
+public class AvailabilityIndex {
+
+    private static final long stalenessNanos =
+            TimeUnit.SECONDS.toNanos(Util.getEnvInt("IndexStalenessSeconds", 60));
+
+    private static volatile ConcurrentNavigableMap<Date, ConcurrentSkipListSet<String>> caregiversByDate = null;
+    private static volatile long reconciledAt;
+    private static ScheduledExecutorService reconciler = null;
+
+    private AvailabilityIndex() {
+    }
+
+    // Warms the index and schedules reconciliation at half the staleness bound
+    public static synchronized void start() {
+        if (reconciler != null) {
+            return;
+        }
+        try {
+            reconcile();
+        } catch (SQLException | RuntimeException e) {
+            System.out.println("Availability index is cold, searches will query the database");
+        }
+        reconciler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "availability-index-reconciler");
+            t.setDaemon(true);
+            return t;
+        });
+        long period = Math.max(TimeUnit.NANOSECONDS.toMillis(stalenessNanos) / 2, 1000);
+        reconciler.scheduleWithFixedDelay(() -> {
+            try {
+                reconcile();
+            } catch (SQLException | RuntimeException e) {
+                // keep serving until the staleness bound expires, then searches fall back to the database
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public static boolean isFresh() {
+        return caregiversByDate != null && System.nanoTime() - reconciledAt < stalenessNanos;
+    }
+
+    // Caregivers available on the date in username order, or null if the index cannot answer
+    public static SortedSet<String> getCaregivers(Date date) {
+        if (!isFresh()) {
+            return null;
+        }
+        ConcurrentSkipListSet<String> caregivers = caregiversByDate.get(date);
+        return caregivers == null ? Collections.<String>emptySortedSet() : new TreeSet<>(caregivers);
+    }
+
+    // Number of caregivers available on each date from start to end that has any, or null if the index cannot answer
+    public static SortedMap<Date, Integer> countCaregivers(Date start, Date end) {
+        if (!isFresh()) {
+            return null;
+        }
+        SortedMap<Date, Integer> counts = new TreeMap<>();
+        for (Map.Entry<Date, ConcurrentSkipListSet<String>> entry :
+                caregiversByDate.subMap(start, true, end, true).entrySet()) {
+            int count = entry.getValue().size();
+            if (count > 0) {
+                counts.put(entry.getKey(), count);
+            }
+        }
+        return counts;
+    }
+
+    // Called after an availability has been committed
+    public static void add(Date date, String caregiverName) {
+        ConcurrentNavigableMap<Date, ConcurrentSkipListSet<String>> index = caregiversByDate;
+        if (index != null) {
+            index.computeIfAbsent(date, d -> new ConcurrentSkipListSet<>()).add(caregiverName);
+        }
+    }
+
+    // Called after an availability has been claimed by a committed reservation
+    public static void remove(Date date, String caregiverName) {
+        ConcurrentNavigableMap<Date, ConcurrentSkipListSet<String>> index = caregiversByDate;
+        if (index != null) {
+            ConcurrentSkipListSet<String> caregivers = index.get(date);
+            if (caregivers != null) {
+                caregivers.remove(caregiverName);
+            }
+        }
+    }
+
+    // Rebuilds the index and the dose counts from storage
+    public static synchronized void reconcile() throws SQLException {
+        ConcurrentNavigableMap<Date, ConcurrentSkipListSet<String>> loaded = new ConcurrentSkipListMap<>();
+        // a write-behind batch committing between the read and the install would have its caregivers come back
+        WriteBehind.flushLock.lock();
+        try {
+            Storage.get().availability().forEach((date, caregiverName) ->
+                    loaded.computeIfAbsent(date, d -> new ConcurrentSkipListSet<>()).add(caregiverName));
+            DoseCache.reload();
+            WriteBehind.hideClaims(loaded);
+            caregiversByDate = loaded;
+            reconciledAt = System.nanoTime();
+        } finally {
+            WriteBehind.flushLock.unlock();
+        }
+    }
+}
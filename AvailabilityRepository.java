@@ -0,0 +1,28 @@
+package scheduler.db;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.Collection;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.function.BiConsumer;
+
+// The dates each caregiver is available on, until a reservation claims them
+public interface AvailabilityRepository {
+
+    // Adds the date, fails if the caregiver is already available on it
+    void add(String caregiverName, Date time) throws SQLException;
+
+    // Adds the dates in one transaction, skipping dates already added, returns how many were added
+    int addAll(String caregiverName, Collection<Date> dates) throws SQLException;
+
+    // Caregivers available on the date, in username order
+    SortedSet<String> caregivers(Date time) throws SQLException;
+
+    // Fills in the caregiver count of every date from start to end that has any, and returns the doses of the
+    // vaccine (null if there is no such vaccine, or no vaccine was asked for), so a backend can answer both at once
+    Integer count(Date start, Date end, String vaccineName, SortedMap<Date, Integer> counts) throws SQLException;
+
+    // Every availability, for warming AvailabilityIndex
+    void forEach(BiConsumer<Date, String> consumer) throws SQLException;
+}
@@ -0,0 +1,170 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.Storage;
+import scheduler.db.WriteBehind;
+import scheduler.model.Vaccine;
+import scheduler.model.Waitlist;
+import scheduler.util.CommandEvent;
+import scheduler.util.Metrics;
+import scheduler.util.Util;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// Runs commands from a script or piped input without banner or prompts, on one pinned
+// connection. Consecutive single-date upload_availability commands and consecutive
+// add_doses commands are collected and written as one batched transaction each.
+public class BatchRunner {
+
+    private final Session session;
+    private final PrintStream out;
+
+    // pending writes, at most one of the two is non-empty at a time
+    private final List<Date> pendingDates = new ArrayList<>();
+    private final Map<String, Integer> pendingDoses = new LinkedHashMap<>();
+    private int pendingDoseCommands = 0;
+
+    private final Map<String, Integer> commandCounts = new TreeMap<>();
+
+    public BatchRunner(PrintStream out) {
+        this.session = new Session(out);
+        this.out = out;
+    }
+
+    public void run(BufferedReader in) throws IOException {
+        long start = System.nanoTime();
+        boolean pinned = Storage.get().usesDatabase();
+        if (pinned) {
+            try {
+                ConnectionManager.pin();
+            } catch (SQLException e) {
+                out.println("Could not reserve a connection for the script, continuing without one");
+            }
+        }
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                CommandLine tokens = session.getCommandLine().parse(line);
+                commandCounts.merge(tokens.get(0), 1, Integer::sum);
+                if (collect(tokens)) {
+                    continue;
+                }
+                flush();
+                if (!Scheduler.execute(session, line)) {
+                    break;
+                }
+            }
+            flush();
+        } finally {
+            if (pinned) {
+                ConnectionManager.unpin();
+            }
+        }
+        // let waitlist matches triggered by the script finish, and journaled reservations be written,
+        // before the process exits
+        Waitlist.awaitIdle();
+        WriteBehind.awaitWritten();
+        printSummary(System.nanoTime() - start);
+    }
+
+    // Queues a write that can be grouped with its neighbours, returns false if the command has to run now
+    private boolean collect(CommandLine tokens) {
+        if (session.getCurrentCaregiver() == null) {
+            return false;
+        }
+        if (tokens.get(0).equals("upload_availability") && tokens.size() == 2) {
+            Date d = Util.parseDate(tokens.get(1));
+            if (d == null) {
+                return false;
+            }
+            if (!pendingDoses.isEmpty()) {
+                flush();
+            }
+            pendingDates.add(d);
+            return true;
+        }
+        if (tokens.get(0).equals("add_doses") && tokens.size() == 3) {
+            int doses = Util.parsePositiveInt(tokens.get(2));
+            if (doses < 0) {
+                return false;
+            }
+            if (!pendingDates.isEmpty()) {
+                flush();
+            }
+            pendingDoses.merge(tokens.get(1), doses, Integer::sum);
+            pendingDoseCommands++;
+            return true;
+        }
+        return false;
+    }
+
+    // Each batch is recorded like Scheduler.execute records a command, see record()
+    private void flush() {
+        if (!pendingDates.isEmpty()) {
+            CommandEvent event = new CommandEvent();
+            event.begin();
+            long start = System.nanoTime();
+            try {
+                int inserted = session.getCurrentCaregiver().uploadAvailabilities(pendingDates);
+                out.println("Availability uploaded! (" + inserted + " inserted, " +
+                        (pendingDates.size() - inserted) + " skipped)");
+            } catch (SQLException e) {
+                Metrics.recordError(e);
+                out.println("Error occurred when uploading availability");
+                e.printStackTrace();
+            } finally {
+                record(event, "upload_availability", pendingDates.size(), start);
+            }
+            pendingDates.clear();
+        }
+        if (!pendingDoses.isEmpty()) {
+            CommandEvent event = new CommandEvent();
+            event.begin();
+            long start = System.nanoTime();
+            try {
+                new Vaccine.DoseImporter().importAll(pendingDoses);
+                out.println("Doses updated! (" + pendingDoseCommands + " add_doses commands)");
+            } catch (SQLException e) {
+                Metrics.recordError(e);
+                out.println("Error occurred when adding doses");
+                e.printStackTrace();
+            } finally {
+                record(event, "add_doses", pendingDoseCommands, start);
+            }
+            pendingDoses.clear();
+            pendingDoseCommands = 0;
+        }
+    }
+
+    // The batch's commands share its latency in the metrics, and the batch is one Flight Recorder event
+    private static void record(CommandEvent event, String command, int commands, long start) {
+        Metrics.recordCommands(command, commands, System.nanoTime() - start);
+        event.command = command;
+        event.commands = commands;
+        event.failed = Metrics.takeCommandFailed();
+        event.commit();
+    }
+
+    private void printSummary(long elapsedNanos) {
+        int total = 0;
+        out.println("--- batch summary ---");
+        for (Map.Entry<String, Integer> count : commandCounts.entrySet()) {
+            out.println(count.getKey() + " " + count.getValue());
+            total += count.getValue();
+        }
+        out.printf("%d commands in %.2fs%n", total, elapsedNanos / 1e9);
+        out.flush();
+    }
+}
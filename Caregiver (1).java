@@ -1,10 +1,17 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
+import scheduler.db.AccountRepository;
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.Storage;
+import scheduler.db.UsernameFilter;
+import scheduler.util.HashingService;
 import scheduler.util.Util;
 
 import java.sql.*;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
 
 public class Caregiver {
     private final String username;
@@ -36,39 +43,33 @@ public class Caregiver {
         return hash;
     }
 
-    public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addCaregiver = "INSERT INTO Caregivers VALUES (? , ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addCaregiver);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+    // Inserts the account, returns false if the username is already taken
+    public boolean saveToDB() throws SQLException {
+        boolean created = Storage.get().accounts().create(AccountRepository.Kind.CAREGIVER,
+                new AccountRepository.Credentials(this.username, this.salt, this.hash,
+                        HashingService.getInstance().getIterations(), HashingService.getInstance().getKeyLength()));
+        UsernameFilter.CAREGIVERS.add(this.username);
+        return created;
     }
 
     public void uploadAvailability(Date d) throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addAvailability = "INSERT INTO Availabilities VALUES (? , ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addAvailability);
-            statement.setDate(1, d);
-            statement.setString(2, this.username);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        Storage.get().availability().add(this.username, d);
+        AvailabilityIndex.add(d, this.username);
+        Waitlist.availabilityAdded(Collections.singleton(d));
+    }
+
+    // Inserts all dates in one transaction, skipping dates already uploaded.
+    // Returns the number of dates that were inserted.
+    public int uploadAvailabilities(Collection<Date> dates) throws SQLException {
+        int inserted = Storage.get().availability().addAll(this.username, dates);
+        // skipped dates were already available, so adding them again is harmless
+        for (Date d : dates) {
+            AvailabilityIndex.add(d, this.username);
         }
+        if (inserted > 0) {
+            Waitlist.availabilityAdded(new LinkedHashSet<>(dates));
+        }
+        return inserted;
     }
 
     public static class CaregiverBuilder {
@@ -99,34 +100,38 @@ public class Caregiver {
         }
 
         public Caregiver get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            AccountRepository.Credentials stored = Storage.get().accounts().find(AccountRepository.Kind.CAREGIVER,
+                    this.username);
+            if (stored == null) {
+                return null;
+            }
+            // check if the password matches, using the parameters the hash was stored with
+            byte[] calculatedHash = Util.generateHash(password, stored.getSalt(), stored.getIterations(),
+                    stored.getKeyLength());
+            if (!Arrays.equals(stored.getHash(), calculatedHash)) {
+                return null;
+            }
+            this.salt = stored.getSalt();
+            this.hash = stored.getHash();
+            upgradeHash(stored.getIterations(), stored.getKeyLength());
+            return new Caregiver(this);
+        }
 
-            String getCaregiver = "SELECT Salt, Hash FROM Caregivers WHERE Username = ?";
+        // Re-hashes the password with the current settings after a successful login
+        private void upgradeHash(int iterations, int keyLength) {
+            if (!HashingService.getInstance().needsRehash(iterations, keyLength)) {
+                return;
+            }
             try {
-                PreparedStatement statement = con.prepareStatement(getCaregiver);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    // we need to call Util.trim() to get rid of the paddings,
-                    // try to remove the use of Util.trim() and you'll see :)
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    // check if the password matches
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Caregiver(this);
-                    }
-                }
-                return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
+                byte[] salt = Util.generateSalt();
+                byte[] hash = Util.generateHash(password, salt);
+                Storage.get().accounts().update(AccountRepository.Kind.CAREGIVER,
+                        new AccountRepository.Credentials(this.username, salt, hash,
+                                HashingService.getInstance().getIterations(), HashingService.getInstance().getKeyLength()));
+                this.salt = salt;
+                this.hash = hash;
+            } catch (SQLException | IllegalStateException e) {
+                // keep the old hash, the upgrade is tried again on the next login
             }
         }
     }
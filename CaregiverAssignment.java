@@ -0,0 +1,334 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Picks the caregiver for a reservation, inside the reservation's transaction. Set with the
+// CaregiverAssignment environment variable:
+//   round-robin   (default) each claim starts after the caregiver claimed last, so consecutive
+//                 and concurrent reservations spread over the day's caregivers
+//   least-loaded  the caregiver with the fewest upcoming appointments, counted in memory and
+//                 recounted from storage every CaregiverLoadRefreshSeconds (default 300)
+//   random        a random starting caregiver, skipping rows other reservations have locked
+// Every claim locks exactly one Availabilities row with UPDLOCK and skips locked rows with READPAST,
+// so concurrent reservations for a date never wait on each other's caregiver. MemoryStorage and
+// WriteBehind claim through the same strategies, taking the caregiver out of a set instead of locking a row.
+public abstract class CaregiverAssignment {
+
+    // the first free caregiver after the given name, in username order
+    private static final Query claimAfter = Query.select("SELECT TOP 1 Username FROM Availabilities " +
+            "WITH (UPDLOCK, ROWLOCK, READPAST) WHERE Time = ? AND Username > ? ORDER BY Username", 1);
+    private static final Query claimCaregiver = Query.select("SELECT Username FROM Availabilities " +
+            "WITH (UPDLOCK, ROWLOCK, READPAST) WHERE Time = ? AND Username = ?", 1);
+    private static final Query getAvailableCaregivers = Query.select(
+            "SELECT Username FROM Availabilities WHERE Time = ?", 100);
+
+    private static final CaregiverAssignment instance = fromEnvironment();
+
+    // The strategy every reservation and waitlist match uses
+    public static CaregiverAssignment getInstance() {
+        return instance;
+    }
+
+    // A new instance of the configured strategy, for a backend that keeps its own, see MemoryStorage
+    static CaregiverAssignment fromEnvironment() {
+        String name = System.getenv("CaregiverAssignment");
+        if (name == null || name.isEmpty() || name.equals("round-robin")) {
+            return new RoundRobin();
+        } else if (name.equals("least-loaded")) {
+            return new LeastLoaded();
+        } else if (name.equals("random")) {
+            return new RandomSkipLocked();
+        }
+        System.out.println("Ignoring invalid CaregiverAssignment: " + name);
+        return new RoundRobin();
+    }
+
+    // Upcoming appointments per caregiver, as storage counts them
+    public interface Loads {
+        Map<String, Integer> upcoming() throws SQLException;
+    }
+
+    // Locks a caregiver available on the date for the current transaction, returns null if none is free
+    public abstract String claim(Connection con, Date time) throws SQLException;
+
+    // Takes a caregiver out of a date's set of available ones, returns null if none is left. Only one
+    // thread can remove a name, so concurrent claims never get the same caregiver.
+    public abstract String claim(NavigableSet<String> caregivers, Loads loads) throws SQLException;
+
+    // Called once the reservation that claimed the caregiver has committed or rolled back
+    public void completed(String caregiverName, boolean committed) {
+    }
+
+    // Called once an appointment of the caregiver has been cancelled
+    public void cancelled(String caregiverName) {
+    }
+
+    // Claims the first free caregiver after the pivot, wrapping around to the start of the day
+    protected static String claimFrom(Connection con, Date time, String pivot) throws SQLException {
+        String caregiverName = claimAfter(con, time, pivot);
+        if (caregiverName == null && !pivot.isEmpty()) {
+            caregiverName = claimAfter(con, time, "");
+        }
+        return caregiverName;
+    }
+
+    private static String claimAfter(Connection con, Date time, String pivot) throws SQLException {
+        try (PreparedStatement statement = claimAfter.prepare(con)) {
+            statement.setDate(1, time);
+            statement.setString(2, pivot);
+            ResultSet resultSet = statement.executeQuery();
+            return resultSet.next() ? resultSet.getString("Username") : null;
+        }
+    }
+
+    // Takes the first caregiver in the set after the pivot, wrapping around to the start of the set
+    protected static String takeFrom(NavigableSet<String> caregivers, String pivot) {
+        String caregiverName = takeFirst(caregivers.tailSet(pivot, false));
+        return caregiverName != null || pivot.isEmpty() ? caregiverName : takeFirst(caregivers);
+    }
+
+    private static String takeFirst(NavigableSet<String> caregivers) {
+        for (String caregiverName : caregivers) {
+            // only one of the threads that see the caregiver gets to remove it
+            if (caregivers.remove(caregiverName)) {
+                return caregiverName;
+            }
+        }
+        return null;
+    }
+
+    // Caregivers available on the date, from the index while it is fresh
+    protected static Collection<String> candidates(Connection con, Date time) throws SQLException {
+        Collection<String> caregivers = AvailabilityIndex.getCaregivers(time);
+        if (caregivers != null) {
+            return caregivers;
+        }
+        try (PreparedStatement statement = getAvailableCaregivers.prepare(con)) {
+            statement.setDate(1, time);
+            ResultSet resultSet = statement.executeQuery();
+            caregivers = new ArrayList<>();
+            while (resultSet.next()) {
+                caregivers.add(resultSet.getString("Username"));
+            }
+            return caregivers;
+        }
+    }
+
+    public static class RoundRobin extends CaregiverAssignment {
+        private final AtomicReference<String> last = new AtomicReference<>("");
+
+        @Override
+        public String claim(Connection con, Date time) throws SQLException {
+            String caregiverName = claimFrom(con, time, last.get());
+            if (caregiverName != null) {
+                last.set(caregiverName);
+            }
+            return caregiverName;
+        }
+
+        @Override
+        public String claim(NavigableSet<String> caregivers, Loads loads) {
+            String caregiverName = takeFrom(caregivers, last.get());
+            if (caregiverName != null) {
+                last.set(caregiverName);
+            }
+            return caregiverName;
+        }
+    }
+
+    public static class RandomSkipLocked extends CaregiverAssignment {
+        @Override
+        public String claim(Connection con, Date time) throws SQLException {
+            List<String> caregivers = new ArrayList<>(candidates(con, time));
+            if (caregivers.isEmpty()) {
+                return null;
+            }
+            // the claim takes the caregiver after a random one in the database's own order, wrapping
+            // around, so every caregiver is as likely as any other whatever the collation sorts them by
+            return claimFrom(con, time, caregivers.get(ThreadLocalRandom.current().nextInt(caregivers.size())));
+        }
+
+        @Override
+        public String claim(NavigableSet<String> caregivers, Loads loads) {
+            Object[] names = caregivers.toArray();
+            if (names.length == 0) {
+                return null;
+            }
+            return takeFrom(caregivers, (String) names[ThreadLocalRandom.current().nextInt(names.length)]);
+        }
+    }
+
+    public static class LeastLoaded extends CaregiverAssignment {
+        private static final Query countAppointments = Query.select("SELECT CName, COUNT(*) AS Appointments " +
+                "FROM Appointment WHERE Time >= ? GROUP BY CName", 1000);
+        // least loaded caregivers tried one by one before taking any free one
+        private static final int MAX_CANDIDATES = 3;
+
+        // past appointments drop out of the counts, and other processes' bookings come in, when they are
+        // recounted
+        private final long refreshNanos = TimeUnit.SECONDS.toNanos(Util.getEnvInt("CaregiverLoadRefreshSeconds", 300));
+
+        // upcoming appointments per caregiver, including claims whose reservation is still in flight; names
+        // compare ignoring case, like the tables' collation
+        private volatile Map<String, AtomicInteger> loads = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+        private volatile boolean loaded = false;
+        private volatile long loadedAt;
+
+        @Override
+        public String claim(Connection con, Date time) throws SQLException {
+            // counted on the reservation's connection, so a reservation never holds two
+            refresh(() -> count(con));
+            String caregiverName = null;
+            for (String candidate : leastLoaded(candidates(con, time))) {
+                try (PreparedStatement statement = claimCaregiver.prepare(con)) {
+                    statement.setDate(1, time);
+                    statement.setString(2, candidate);
+                    ResultSet resultSet = statement.executeQuery();
+                    if (resultSet.next()) {
+                        caregiverName = resultSet.getString("Username");
+                        break;
+                    }
+                }
+            }
+            if (caregiverName == null) {
+                caregiverName = claimFrom(con, time, "");
+            }
+            return claimed(caregiverName);
+        }
+
+        @Override
+        public String claim(NavigableSet<String> caregivers, Loads storage) throws SQLException {
+            refresh(storage);
+            String caregiverName = null;
+            for (String candidate : leastLoaded(caregivers)) {
+                if (caregivers.remove(candidate)) {
+                    caregiverName = candidate;
+                    break;
+                }
+            }
+            if (caregiverName == null) {
+                caregiverName = takeFrom(caregivers, "");
+            }
+            return claimed(caregiverName);
+        }
+
+        @Override
+        public void completed(String caregiverName, boolean committed) {
+            if (!committed) {
+                decrement(caregiverName);
+            }
+        }
+
+        @Override
+        public void cancelled(String caregiverName) {
+            decrement(caregiverName);
+        }
+
+        // counted right away so concurrent reservations steer away from this caregiver
+        private String claimed(String caregiverName) {
+            if (caregiverName != null) {
+                loads.computeIfAbsent(caregiverName, c -> new AtomicInteger()).incrementAndGet();
+            }
+            return caregiverName;
+        }
+
+        private void decrement(String caregiverName) {
+            AtomicInteger load = loads.get(caregiverName);
+            if (load != null) {
+                load.decrementAndGet();
+            }
+        }
+
+        // a recount can miss a claim still in flight that is later rolled back, so a count may dip below zero
+        private int load(String caregiverName) {
+            AtomicInteger load = loads.get(caregiverName);
+            return load == null ? 0 : Math.max(load.get(), 0);
+        }
+
+        // The MAX_CANDIDATES caregivers with the fewest appointments, fewest first. Concurrent claims change
+        // the loads, so each caregiver's load is read once.
+        private List<String> leastLoaded(Collection<String> caregivers) {
+            String[] names = new String[MAX_CANDIDATES];
+            int[] counts = new int[MAX_CANDIDATES];
+            int found = 0;
+            for (String caregiver : caregivers) {
+                int count = load(caregiver);
+                int i = found < MAX_CANDIDATES ? found++ : MAX_CANDIDATES;
+                // move the more loaded ones down a place, the last one drops out when all places are taken
+                while (i > 0 && counts[i - 1] > count) {
+                    if (i < MAX_CANDIDATES) {
+                        names[i] = names[i - 1];
+                        counts[i] = counts[i - 1];
+                    }
+                    i--;
+                }
+                if (i < MAX_CANDIDATES) {
+                    names[i] = caregiver;
+                    counts[i] = count;
+                }
+            }
+            return Arrays.asList(names).subList(0, found);
+        }
+
+        // Recounts the loads when they are older than the refresh interval. The first count fails the claim
+        // if storage cannot be read; a later one keeps the counts it has and tries again an interval later.
+        private void refresh(Loads storage) throws SQLException {
+            if (loaded && System.nanoTime() - loadedAt < refreshNanos) {
+                return;
+            }
+            synchronized (this) {
+                if (loaded && System.nanoTime() - loadedAt < refreshNanos) {
+                    return;
+                }
+                Map<String, AtomicInteger> counted = new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+                try {
+                    for (Map.Entry<String, Integer> entry : storage.upcoming().entrySet()) {
+                        counted.computeIfAbsent(entry.getKey(), c -> new AtomicInteger()).addAndGet(entry.getValue());
+                    }
+                } catch (SQLException e) {
+                    if (!loaded) {
+                        throw e;
+                    }
+                    Metrics.recordError(e);
+                    loadedAt = System.nanoTime();
+                    return;
+                }
+                loads = counted;
+                loadedAt = System.nanoTime();
+                loaded = true;
+            }
+        }
+
+        static Map<String, Integer> count(Connection con) throws SQLException {
+            try (PreparedStatement statement = countAppointments.prepare(con)) {
+                statement.setDate(1, Date.valueOf(LocalDate.now()));
+                ResultSet resultSet = statement.executeQuery();
+                Map<String, Integer> counts = new HashMap<>();
+                while (resultSet.next()) {
+                    counts.put(resultSet.getString("CName"), resultSet.getInt("Appointments"));
+                }
+                return counts;
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package scheduler.util;
+
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+// One scheduler command, visible in Flight Recorder recordings; costs next to nothing while JFR is off
+@Name("scheduler.Command")
+@Label("Scheduler Command")
+@Category("Scheduler")
+public class CommandEvent extends Event {
+    @Label("Command")
+    public String command;
+
+    @Label("Failed")
+    public boolean failed;
+
+    // more than one when the event is a batch of the command, see BatchRunner
+    @Label("Commands")
+    public int commands = 1;
+}
@@ -0,0 +1,47 @@
+package scheduler;
+
+import java.util.Arrays;
+
+// Tokens of one input line. The token array is reused from line to line, so parsing a
+// command allocates nothing but the token strings themselves, where String.split would
+// also run the regex machinery and allocate a list and a fresh array for every line.
+public class CommandLine {
+    private String[] tokens = new String[8];
+    private int size = 0;
+
+    // Splits the line on spaces in a single pass, runs of spaces count as one separator
+    public CommandLine parse(String line) {
+        Arrays.fill(tokens, 0, size, null);
+        size = 0;
+        int length = line.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && line.charAt(i) == ' ') {
+                i++;
+            }
+            if (i == length) {
+                break;
+            }
+            int start = i;
+            while (i < length && line.charAt(i) != ' ') {
+                i++;
+            }
+            if (size == tokens.length) {
+                tokens = Arrays.copyOf(tokens, size * 2);
+            }
+            tokens[size++] = line.substring(start, i);
+        }
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String get(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("No token " + index + " in a line of " + size);
+        }
+        return tokens[index];
+    }
+}
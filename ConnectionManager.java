@@ -1,41 +1,121 @@
 package scheduler.db;
 
+import scheduler.util.Metrics;
+import scheduler.util.Util;
+
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 
 public class ConnectionManager {
 
-    private final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
-    private final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
+    private static final String driverName = "com.microsoft.sqlserver.jdbc.SQLServerDriver";
+    private static final String connectionUrl = "jdbc:sqlserver://" + System.getenv("Server") +
             ".database.windows.net:1433;database=" + System.getenv("DBName");
-    private final String userName = System.getenv("UserID");
-    private final String userPass = System.getenv("Password");
+    private static final String userName = System.getenv("UserID");
+    private static final String userPass = System.getenv("Password");
 
-    private Connection con = null;
+    // pool settings, all optional
+    private static final int poolSize = Util.getEnvInt("PoolSize", 10);
+    private static final long poolTimeoutMillis = Util.getEnvInt("PoolTimeoutMs", 30_000);
+    private static final long poolIdleTimeoutMillis = Util.getEnvInt("PoolIdleTimeoutMs", 10 * 60_000);
+    private static final long poolMaxLifetimeMillis = Util.getEnvInt("PoolMaxLifetimeMs", 30 * 60_000);
 
-    public ConnectionManager() {
+    // shared by every ConnectionManager, so the driver is loaded and connections are dialed once per process;
+    // each connection keeps its prepared statements, see StatementCache
+    private static final ConnectionPool pool;
+
+    static {
         try {
             Class.forName(driverName);
         } catch (ClassNotFoundException e) {
             System.out.println(e.toString());
         }
+        pool = new ConnectionPool(
+                () -> StatementCache.wrap(RoundTripCounter.wrap(
+                        DriverManager.getConnection(connectionUrl, userName, userPass))),
+                poolSize, poolTimeoutMillis, poolIdleTimeoutMillis, poolMaxLifetimeMillis);
     }
 
-    public Connection createConnection() {
-        try {
-            con = DriverManager.getConnection(connectionUrl, userName, userPass);
-        } catch (SQLException e) {
-            e.printStackTrace();
+    // connection kept by a thread across many ConnectionManagers, see pin()
+    private static final ThreadLocal<Pinned> pinned = new ThreadLocal<>();
+
+    private ConnectionPool.PooledConnection pooled = null;
+    private boolean usingPinned = false;
+
+    public ConnectionManager() {
+    }
+
+    // Borrows a connection from the shared pool, or uses the thread's pinned one; closeConnection() hands it back
+    public Connection createConnection() throws SQLException {
+        Metrics.recordConnectionAcquired();
+        Pinned pin = pinned.get();
+        if (pin != null) {
+            pin.depth++;
+            usingPinned = true;
+            return pin.pooled.getConnection();
         }
-        return con;
+        pooled = pool.borrow();
+        return pooled.getConnection();
     }
 
     public void closeConnection() {
-        try {
-            this.con.close();
-        } catch (SQLException e) {
-            e.printStackTrace();
+        if (usingPinned) {
+            usingPinned = false;
+            Pinned pin = pinned.get();
+            // only the outermost user may end a transaction, like a return to the pool would
+            if (--pin.depth == 0 && !pool.reset(pin.pooled)) {
+                // drop the broken connection, later calls borrow from the pool as usual
+                pin.pooled.markBroken();
+                unpin();
+            }
+            return;
+        }
+        if (pooled == null) {
+            return;
+        }
+        pool.release(pooled);
+        pooled = null;
+    }
+
+    // Keeps one connection for every ConnectionManager on the current thread until unpin(),
+    // for long runs of commands such as scripts
+    public static void pin() throws SQLException {
+        if (pinned.get() == null) {
+            pinned.set(new Pinned(pool.borrow()));
+        }
+    }
+
+    // Whether the current thread holds a pinned connection
+    public static boolean isPinned() {
+        return pinned.get() != null;
+    }
+
+    public static void unpin() {
+        Pinned pin = pinned.get();
+        if (pin != null) {
+            pinned.remove();
+            pool.release(pin.pooled);
+        }
+    }
+
+    // Whether an insert failed on a primary key or unique index: SQL Server reports errors
+    // 2627 and 2601, other drivers an integrity constraint SQLState in class 23
+    public static boolean isDuplicateKey(SQLException e) {
+        return e.getErrorCode() == 2627 || e.getErrorCode() == 2601
+                || (e.getSQLState() != null && e.getSQLState().startsWith("23"));
+    }
+
+    public static ConnectionPool getPool() {
+        return pool;
+    }
+
+    private static class Pinned {
+        private final ConnectionPool.PooledConnection pooled;
+        private int depth = 0;
+
+        private Pinned(ConnectionPool.PooledConnection pooled) {
+            this.pooled = pooled;
         }
     }
 }
@@ -0,0 +1,82 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// In-process copy of the Vaccines table. Committed writes are applied as deltas to a
+// LongAdder per vaccine, so concurrent reservations and dose adds never contend on
+// a single counter and the order in which they are applied does not matter. Names are
+// matched ignoring case, as the database does, and shown as the table spells them.
+public class DoseCache {
+
+    private static final ConcurrentSkipListMap<String, LongAdder> doses =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    private static volatile boolean warm = false;
+
+    private DoseCache() {
+    }
+
+    public static boolean isWarm() {
+        return warm;
+    }
+
+    // Applies a committed change to a vaccine's dose count. Changes are kept while the cache is cold as
+    // well, so one committed during a reload is not lost, see reload().
+    public static void add(String vaccineName, int delta) {
+        doses.computeIfAbsent(vaccineName, name -> new LongAdder()).add(delta);
+    }
+
+    // Committed count of the vaccine's doses, or null if the cache is cold or the vaccine unknown
+    public static Integer get(String vaccineName) {
+        LongAdder adder = doses.get(vaccineName);
+        return warm && adder != null ? adder.intValue() : null;
+    }
+
+    // Drops the cached counts, the next snapshot() reloads them from storage
+    public static void invalidate() {
+        warm = false;
+    }
+
+    // Returns dose counts sorted by vaccine name, reading the table only when the cache is cold
+    public static SortedMap<String, Integer> snapshot() throws SQLException {
+        if (!warm) {
+            reload();
+        }
+        SortedMap<String, Integer> snapshot = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        for (Map.Entry<String, LongAdder> entry : doses.entrySet()) {
+            // less the doses held by reservations still waiting to be written, see WriteBehind
+            snapshot.put(entry.getKey(), entry.getValue().intValue() - WriteBehind.debited(entry.getKey()));
+        }
+        return snapshot;
+    }
+
+    // Reads the counts from storage. The adders are corrected by the difference between the read and
+    // what they held before it rather than replaced, so a change add() applies while the read runs stays
+    // on top of it. A change committed just before the read but added just after it is counted twice
+    // until the next reload; the reverse, a change committed after the read, is never lost.
+    public static synchronized void reload() throws SQLException {
+        // a write-behind batch committing during the read would have its doses taken twice
+        WriteBehind.flushLock.lock();
+        try {
+            Map<String, Long> before = new HashMap<>();
+            for (Map.Entry<String, LongAdder> entry : doses.entrySet()) {
+                before.put(entry.getKey(), entry.getValue().sum());
+            }
+            Map<String, Integer> loaded = Storage.get().inventory().all();
+            // entries spelt otherwise than the table are dropped and put back as the table spells them
+            doses.keySet().retainAll(loaded.keySet());
+            for (Map.Entry<String, Integer> entry : loaded.entrySet()) {
+                LongAdder adder = doses.computeIfAbsent(entry.getKey(), name -> new LongAdder());
+                adder.add(entry.getValue() - before.getOrDefault(entry.getKey(), 0L));
+            }
+            warm = true;
+        } finally {
+            WriteBehind.flushLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package scheduler.util;
+
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.security.spec.InvalidKeySpecException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Runs PBKDF2 on a fixed pool sized to the cores with a bounded queue, so a burst of
+// logins or sign-ups is turned away instead of taking every CPU from reservations.
+public class HashingService {
+
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA1";
+    private static final int SALT_LENGTH = 16;
+
+    private static final HashingService instance = new HashingService(
+            Util.getEnvInt("HashIterations", Util.HASH_STRENGTH),
+            Util.getEnvInt("HashKeyLength", Util.KEY_LENGTH),
+            Util.getEnvInt("HashThreads", Runtime.getRuntime().availableProcessors()),
+            Util.getEnvInt("HashQueueSize", 64),
+            Util.getEnvInt("HashTimeoutMs", 5_000));
+
+    // SecretKeyFactory is not thread safe, so each worker keeps its own
+    private static final ThreadLocal<SecretKeyFactory> factories = ThreadLocal.withInitial(() -> {
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+
+    private final int iterations;
+    private final int keyLength;
+    private final long timeoutMillis;
+    private final SecureRandom random = new SecureRandom();
+    private final ThreadPoolExecutor executor;
+
+    private HashingService(int iterations, int keyLength, int threads, int queueSize, long timeoutMillis) {
+        this.iterations = iterations;
+        this.keyLength = keyLength;
+        this.timeoutMillis = timeoutMillis;
+
+        AtomicInteger count = new AtomicInteger();
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(queueSize), r -> {
+            Thread t = new Thread(r, "pbkdf2-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    public static HashingService getInstance() {
+        return instance;
+    }
+
+    // Getters
+    public int getIterations() {
+        return iterations;
+    }
+
+    public int getKeyLength() {
+        return keyLength;
+    }
+
+    public byte[] generateSalt() {
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+        return salt;
+    }
+
+    // Hashes with the configured parameters
+    public byte[] hash(String password, byte[] salt) {
+        return hash(password, salt, iterations, keyLength);
+    }
+
+    // Hashes with explicit parameters, used to verify hashes stored with older settings.
+    // Throws IllegalStateException when the service is saturated or shut down, or the hash times out,
+    // which callers report like any failed command ("Please try again").
+    public byte[] hash(String password, byte[] salt, int iterations, int keyLength) {
+        Future<byte[]> result;
+        try {
+            result = executor.submit(() -> derive(password, salt, iterations, keyLength));
+        } catch (RejectedExecutionException e) {
+            throw new IllegalStateException(executor.isShutdown() ? "Password hashing has shut down"
+                    : "Too many password hashes in progress", e);
+        }
+        try {
+            return result.get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            throw new IllegalStateException("Timed out hashing password");
+        } catch (InterruptedException e) {
+            result.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while hashing password");
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    // Stops taking hashes, the ones queued finish; later calls to hash fail with IllegalStateException
+    public void shutdown() {
+        executor.shutdown();
+    }
+
+    // Whether a hash stored with these parameters should be replaced by one using the current settings
+    public boolean needsRehash(int iterations, int keyLength) {
+        return iterations != this.iterations || keyLength != this.keyLength;
+    }
+
+    private static byte[] derive(String password, byte[] salt, int iterations, int keyLength)
+            throws InvalidKeySpecException {
+        Metrics.recordPbkdf2();
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, iterations, keyLength);
+        try {
+            return factories.get().generateSecret(spec).getEncoded();
+        } finally {
+            spec.clearPassword();
+        }
+    }
+}
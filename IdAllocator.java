@@ -0,0 +1,70 @@
+package scheduler.db;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Hands out IDs from blocks reserved in the IdBlocks table (hi/lo), so only one
+// round trip is needed per block instead of one per ID. IDs are unique across
+// processes but not gap-free: the unused rest of a block is lost on shutdown.
+public class IdAllocator {
+
+    private static final Query reserveBlock = Query.update("UPDATE IdBlocks SET NextID = NextID + ? " +
+            "OUTPUT deleted.NextID WHERE Name = ?");
+
+    private final String name;
+    private final int blockSize;
+    private volatile Block block = new Block(0, 0);
+
+    public IdAllocator(String name, int blockSize) {
+        if (blockSize <= 0) {
+            throw new IllegalArgumentException("Block size must be positive!");
+        }
+        this.name = name;
+        this.blockSize = blockSize;
+    }
+
+    public long nextId() throws SQLException {
+        while (true) {
+            Block current = block;
+            long id = current.next.getAndIncrement();
+            if (id < current.end) {
+                return id;
+            }
+            refill(current);
+        }
+    }
+
+    private synchronized void refill(Block exhausted) throws SQLException {
+        // another thread may have refilled while we were waiting for the lock
+        if (block != exhausted) {
+            return;
+        }
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = reserveBlock.prepare(con)) {
+            statement.setInt(1, this.blockSize);
+            statement.setString(2, this.name);
+            ResultSet resultSet = statement.executeQuery();
+            if (!resultSet.next()) {
+                throw new SQLException("No IdBlocks row for " + this.name);
+            }
+            long start = resultSet.getLong(1);
+            block = new Block(start, start + this.blockSize);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static class Block {
+        private final AtomicLong next;
+        private final long end;
+
+        private Block(long start, long end) {
+            this.next = new AtomicLong(start);
+            this.end = end;
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package scheduler.db;
+
+import java.sql.SQLException;
+import java.util.Map;
+
+// Doses on hand per vaccine
+public interface InventoryRepository {
+
+    // The vaccine's doses, or null if there is no such vaccine
+    Integer doses(String vaccineName) throws SQLException;
+
+    // Adds the vaccine, fails if it already exists
+    void create(String vaccineName, int doses) throws SQLException;
+
+    // Adds delta to the count in one step, so concurrent writers never overwrite each other. Returns the new
+    // count, or null, leaving the count untouched, if the vaccine is missing or the count would go negative.
+    Integer addDoses(String vaccineName, int delta) throws SQLException;
+
+    // Adds the doses in one transaction, creating the vaccines that do not exist yet
+    void addAll(Map<String, Integer> doses) throws SQLException;
+
+    // Every vaccine's doses, for warming DoseCache
+    Map<String, Integer> all() throws SQLException;
+}
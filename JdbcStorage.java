@@ -0,0 +1,822 @@
+package scheduler.db;
+
+import scheduler.util.Util;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.BiConsumer;
+
+// The tables of create.sql and the migrations, on the database behind ConnectionManager. The
+// statements are written for SQL Server (TOP, OUTPUT, MERGE and table hints).
+public class JdbcStorage extends Storage {
+
+    // full table reads warming the caches may run longer than a command's statements
+    private static final int BULK_TIMEOUT_SECONDS = 120;
+
+    private final AccountRepository accounts = new Accounts();
+    private final AvailabilityRepository availability = new Availability();
+    private final InventoryRepository inventory = new Inventory();
+    private final AppointmentRepository appointments = new Appointments();
+
+    @Override
+    public AccountRepository accounts() {
+        return accounts;
+    }
+
+    @Override
+    public AvailabilityRepository availability() {
+        return availability;
+    }
+
+    @Override
+    public InventoryRepository inventory() {
+        return inventory;
+    }
+
+    @Override
+    public AppointmentRepository appointments() {
+        return appointments;
+    }
+
+    @Override
+    public boolean usesDatabase() {
+        return true;
+    }
+
+    @Override
+    public int migrate() throws IOException, SQLException {
+        return MigrationRunner.migrate();
+    }
+
+    // The table is named by the kind, so the queries are put together per call; the statement cache keys
+    // on the SQL, so each is still prepared once per connection
+    public static class Accounts implements AccountRepository {
+
+        private static String table(Kind kind) {
+            return kind == Kind.PATIENT ? "Patients" : "Caregivers";
+        }
+
+        @Override
+        public boolean create(Kind kind, Credentials credentials) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            Query addAccount = Query.update("INSERT INTO " + table(kind) +
+                    " (Username, Salt, Hash, Iterations, KeyLength) VALUES (?, ?, ?, ?, ?)");
+            try (PreparedStatement statement = addAccount.prepare(con)) {
+                statement.setString(1, credentials.getUsername());
+                statement.setBytes(2, credentials.getSalt());
+                statement.setBytes(3, credentials.getHash());
+                statement.setInt(4, credentials.getIterations());
+                statement.setInt(5, credentials.getKeyLength());
+                statement.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                if (ConnectionManager.isDuplicateKey(e)) {
+                    return false;
+                }
+                throw e;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public boolean exists(Kind kind, String username) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            Query selectUsername = Query.select("SELECT 1 FROM " + table(kind) + " WHERE Username = ?", 1);
+            try (PreparedStatement statement = selectUsername.prepare(con)) {
+                statement.setString(1, username);
+                return statement.executeQuery().next();
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public Credentials find(Kind kind, String username) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            Query getAccount = Query.select("SELECT Salt, Hash, Iterations, KeyLength FROM " + table(kind) +
+                    " WHERE Username = ?", 1);
+            try (PreparedStatement statement = getAccount.prepare(con)) {
+                statement.setString(1, username);
+                ResultSet resultSet = statement.executeQuery();
+                if (!resultSet.next()) {
+                    return null;
+                }
+                // the hash column pads with zeros, and rows from before the Iterations and KeyLength columns
+                // were hashed with the old defaults
+                return new Credentials(username, resultSet.getBytes("Salt"), Util.trim(resultSet.getBytes("Hash")),
+                        Util.storedIterations(resultSet.getInt("Iterations")),
+                        Util.storedKeyLength(resultSet.getInt("KeyLength")));
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public void update(Kind kind, Credentials credentials) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+
+            Query updateHash = Query.update("UPDATE " + table(kind) +
+                    " SET Salt = ?, Hash = ?, Iterations = ?, KeyLength = ? WHERE Username = ?");
+            try (PreparedStatement statement = updateHash.prepare(con)) {
+                statement.setBytes(1, credentials.getSalt());
+                statement.setBytes(2, credentials.getHash());
+                statement.setInt(3, credentials.getIterations());
+                statement.setInt(4, credentials.getKeyLength());
+                statement.setString(5, credentials.getUsername());
+                statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public List<String> usernames(Kind kind) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            Query getUsernames = Query.select("SELECT Username FROM " + table(kind), 10_000)
+                    .withTimeout(BULK_TIMEOUT_SECONDS);
+            try (PreparedStatement statement = getUsernames.prepare(con)) {
+                ResultSet resultSet = statement.executeQuery();
+                List<String> usernames = new ArrayList<>();
+                while (resultSet.next()) {
+                    usernames.add(resultSet.getString("Username"));
+                }
+                return usernames;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+
+    public static class Availability implements AvailabilityRepository {
+        private static final Query addAvailability = Query.update(
+                "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)");
+        private static final Query addMissingAvailability = Query.update("INSERT INTO Availabilities (Time, Username) " +
+                "SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)");
+        private static final Query getAvailableCaregivers = Query.select("SELECT Username FROM Availabilities " +
+                "WHERE Time = ? ORDER BY Username", 100);
+        private static final String countCaregivers = "SELECT Time, COUNT(*) AS Caregivers, NULL AS Doses " +
+                "FROM Availabilities WHERE Time BETWEEN ? AND ? GROUP BY Time";
+        private static final Query countAllCaregivers = Query.select(countCaregivers, 100);
+        private static final Query countCaregiversAndDoses = Query.select(countCaregivers +
+                " UNION ALL SELECT NULL, NULL, Doses FROM Vaccines WHERE Name = ?", 100);
+        private static final Query getAvailabilities = Query.select("SELECT Time, Username FROM Availabilities", 1000)
+                .withTimeout(BULK_TIMEOUT_SECONDS);
+
+        @Override
+        public void add(String caregiverName, Date time) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = addAvailability.prepare(con)) {
+                statement.setDate(1, time);
+                statement.setString(2, caregiverName);
+                statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public int addAll(String caregiverName, Collection<Date> dates) throws SQLException {
+            // duplicates within the request would otherwise race each other inside the batch
+            Set<Date> unique = new LinkedHashSet<>(dates);
+            if (unique.isEmpty()) {
+                return 0;
+            }
+
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = addMissingAvailability.prepare(con)) {
+                con.setAutoCommit(false);
+                for (Date d : unique) {
+                    statement.setDate(1, d);
+                    statement.setString(2, caregiverName);
+                    statement.setDate(3, d);
+                    statement.setString(4, caregiverName);
+                    statement.addBatch();
+                }
+                int inserted = 0;
+                for (int count : statement.executeBatch()) {
+                    if (count > 0 || count == Statement.SUCCESS_NO_INFO) {
+                        inserted++;
+                    }
+                }
+                con.commit();
+                return inserted;
+            } finally {
+                // the pool rolls back a transaction left open by a failure when the connection is returned
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public SortedSet<String> caregivers(Date time) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = getAvailableCaregivers.prepare(con)) {
+                statement.setDate(1, time);
+                ResultSet resultSet = statement.executeQuery();
+                SortedSet<String> caregivers = new TreeSet<>();
+                while (resultSet.next()) {
+                    caregivers.add(resultSet.getString("Username"));
+                }
+                return caregivers;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        // One round trip: the vaccine's doses come back as an extra row with no date
+        @Override
+        public Integer count(Date start, Date end, String vaccineName, SortedMap<Date, Integer> counts)
+                throws SQLException {
+            Query query = vaccineName == null ? countAllCaregivers : countCaregiversAndDoses;
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = query.prepare(con)) {
+                statement.setDate(1, start);
+                statement.setDate(2, end);
+                if (vaccineName != null) {
+                    statement.setString(3, vaccineName);
+                }
+                ResultSet resultSet = statement.executeQuery();
+                Integer doses = null;
+                while (resultSet.next()) {
+                    Date date = resultSet.getDate("Time");
+                    if (date == null) {
+                        doses = resultSet.getInt("Doses");
+                    } else {
+                        counts.put(date, resultSet.getInt("Caregivers"));
+                    }
+                }
+                return doses;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public void forEach(BiConsumer<Date, String> consumer) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = getAvailabilities.prepare(con)) {
+                ResultSet resultSet = statement.executeQuery();
+                while (resultSet.next()) {
+                    consumer.accept(resultSet.getDate("Time"), resultSet.getString("Username"));
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+
+    public static class Inventory implements InventoryRepository {
+        private static final Query getVaccine = Query.select("SELECT Doses FROM Vaccines WHERE Name = ?", 1);
+        private static final Query addVaccine = Query.update("INSERT INTO Vaccines (Name, Doses) VALUES (?, ?)");
+        private static final Query updateDoses = Query.update("UPDATE Vaccines SET Doses = Doses + ? " +
+                "OUTPUT inserted.Doses WHERE Name = ? AND Doses + ? >= 0");
+        private static final Query upsertDoses = Query.update("MERGE Vaccines WITH (HOLDLOCK) AS v " +
+                "USING (SELECT ? AS Name, ? AS Doses) AS s ON v.Name = s.Name " +
+                "WHEN MATCHED THEN UPDATE SET Doses = v.Doses + s.Doses " +
+                "WHEN NOT MATCHED THEN INSERT (Name, Doses) VALUES (s.Name, s.Doses);");
+        private static final Query getVaccines = Query.select("SELECT Name, Doses FROM Vaccines", 1000);
+        private static final int BATCH_SIZE = 500;
+
+        @Override
+        public Integer doses(String vaccineName) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = getVaccine.prepare(con)) {
+                statement.setString(1, vaccineName);
+                ResultSet resultSet = statement.executeQuery();
+                return resultSet.next() ? resultSet.getInt("Doses") : null;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public void create(String vaccineName, int doses) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = addVaccine.prepare(con)) {
+                statement.setString(1, vaccineName);
+                statement.setInt(2, doses);
+                statement.executeUpdate();
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public Integer addDoses(String vaccineName, int delta) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = updateDoses.prepare(con)) {
+                statement.setInt(1, delta);
+                statement.setString(2, vaccineName);
+                statement.setInt(3, delta);
+                ResultSet resultSet = statement.executeQuery();
+                return resultSet.next() ? resultSet.getInt(1) : null;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        // Batched upserts, sent BATCH_SIZE at a time
+        @Override
+        public void addAll(Map<String, Integer> doses) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = upsertDoses.prepare(con)) {
+                con.setAutoCommit(false);
+                int pending = 0;
+                for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+                    statement.setString(1, entry.getKey());
+                    statement.setInt(2, entry.getValue());
+                    statement.addBatch();
+                    if (++pending == BATCH_SIZE) {
+                        statement.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    statement.executeBatch();
+                }
+                con.commit();
+            } finally {
+                // the pool rolls back a transaction left open by a failure when the connection is returned
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public Map<String, Integer> all() throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = getVaccines.prepare(con)) {
+                ResultSet resultSet = statement.executeQuery();
+                Map<String, Integer> doses = new HashMap<>();
+                while (resultSet.next()) {
+                    doses.put(resultSet.getString("Name"), resultSet.getInt("Doses"));
+                }
+                return doses;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+
+    public static class Appointments implements AppointmentRepository {
+        // SQL Server reports deadlock victims with error 1205, other drivers with SQLState 40001
+        private static final int DEADLOCK_ERROR_CODE = 1205;
+        private static final String SERIALIZATION_FAILURE = "40001";
+        private static final int MAX_ATTEMPTS = 5;
+        private static final int WAITLIST_BATCH_SIZE = 100;
+        // above this many changed dates a waitlist pass simply looks at every upcoming date
+        private static final int MAX_DATE_PARAMETERS = 1000;
+
+        private static final Query decreaseDoses = Query.update(
+                "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0");
+        private static final Query vaccineExists = Query.select("SELECT 1 FROM Vaccines WHERE Name = ?", 1);
+        private static final Query addAppointment = Query.update(
+                "INSERT INTO Appointment (PName, CName, VName, Time, ApptID) VALUES (?, ?, ?, ?, ?)");
+        private static final Query removeAvailability = Query.update(
+                "DELETE FROM Availabilities WHERE Username = ? AND Time = ?");
+        private static final Query addRequest = Query.update(
+                "INSERT INTO Waitlist (PName, VName, Time) VALUES (?, ?, ?)");
+        private static final Query removeRequest = Query.update("DELETE FROM Waitlist WHERE WaitID = ?");
+        private static final Query removePatientRequest = Query.update(
+                "DELETE FROM Waitlist WHERE PName = ? AND Time = ? AND VName = ?");
+        private static final Query removePatientAppointment = Query.update("DELETE FROM Appointment " +
+                "OUTPUT deleted.PName, deleted.CName, deleted.VName, deleted.Time " +
+                "WHERE ApptID = ? AND PName = ? AND Time >= ?");
+        private static final Query removeCaregiverAppointment = Query.update("DELETE FROM Appointment " +
+                "OUTPUT deleted.PName, deleted.CName, deleted.VName, deleted.Time " +
+                "WHERE ApptID = ? AND CName = ? AND Time >= ?");
+        private static final Query restoreAvailability = Query.update("INSERT INTO Availabilities (Time, Username) " +
+                "SELECT ?, ? WHERE NOT EXISTS (SELECT 1 FROM Availabilities WHERE Time = ? AND Username = ?)");
+        private static final Query restoreDose = Query.update("UPDATE Vaccines SET Doses = Doses + 1 WHERE Name = ?");
+
+        // claims the caregiver, see CaregiverAssignment
+        private static final CaregiverAssignment assignment = CaregiverAssignment.getInstance();
+
+        private final IdAllocator appointmentIds = new IdAllocator("Appointment",
+                Util.getEnvInt("ApptIdBlockSize", 100));
+
+        @Override
+        public long nextId() throws SQLException {
+            return appointmentIds.nextId();
+        }
+
+        // Runs in a single transaction, retried when the database picks this session as a deadlock victim
+        @Override
+        public Reservation reserve(String patientName, Date time, String vaccineName) throws SQLException {
+            // taken before borrowing a connection, as a block refill needs a connection of its own
+            long apptId = appointmentIds.nextId();
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                con.setAutoCommit(false);
+                for (int attempt = 1; ; attempt++) {
+                    String[] claimed = new String[1];
+                    boolean committed = false;
+                    try {
+                        Reservation reservation = reserve(con, apptId, patientName, time, vaccineName, claimed);
+                        if (reservation.getAppointment() == null) {
+                            con.rollback();
+                        } else {
+                            con.commit();
+                            committed = true;
+                        }
+                        return reservation;
+                    } catch (SQLException e) {
+                        con.rollback();
+                        if (!isDeadlock(e) || attempt == MAX_ATTEMPTS) {
+                            throw e;
+                        }
+                        backOff(attempt);
+                    } finally {
+                        if (claimed[0] != null) {
+                            assignment.completed(claimed[0], committed);
+                        }
+                    }
+                }
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        // claimed[0] is set to the caregiver as soon as one is claimed
+        private static Reservation reserve(Connection con, long apptId, String patientName, Date time,
+                                           String vaccineName, String[] claimed) throws SQLException {
+            String caregiverName = assignment.claim(con, time);
+            if (caregiverName == null) {
+                return new Reservation(Outcome.NO_CAREGIVER, null);
+            }
+            claimed[0] = caregiverName;
+
+            try (PreparedStatement statement = decreaseDoses.prepare(con)) {
+                statement.setString(1, vaccineName);
+                if (statement.executeUpdate() == 0) {
+                    return new Reservation(exists(con, vaccineName) ? Outcome.NOT_ENOUGH_DOSES
+                            : Outcome.VACCINE_NOT_FOUND, null);
+                }
+            }
+
+            try (PreparedStatement statement = addAppointment.prepare(con)) {
+                statement.setString(1, patientName);
+                statement.setString(2, caregiverName);
+                statement.setString(3, vaccineName);
+                statement.setDate(4, time);
+                statement.setLong(5, apptId);
+                statement.executeUpdate();
+            }
+
+            try (PreparedStatement statement = removeAvailability.prepare(con)) {
+                statement.setString(1, caregiverName);
+                statement.setDate(2, time);
+                statement.executeUpdate();
+            }
+
+            // a patient who was waiting for this date and vaccine must not be matched to a second appointment
+            try (PreparedStatement statement = removePatientRequest.prepare(con)) {
+                statement.setString(1, patientName);
+                statement.setDate(2, time);
+                statement.setString(3, vaccineName);
+                statement.executeUpdate();
+            }
+
+            return new Reservation(Outcome.RESERVED,
+                    new Appointment(apptId, patientName, caregiverName, vaccineName, time));
+        }
+
+        private static boolean exists(Connection con, String vaccineName) throws SQLException {
+            try (PreparedStatement statement = vaccineExists.prepare(con)) {
+                statement.setString(1, vaccineName);
+                return statement.executeQuery().next();
+            }
+        }
+
+        private static boolean isDeadlock(SQLException e) {
+            return e.getErrorCode() == DEADLOCK_ERROR_CODE || SERIALIZATION_FAILURE.equals(e.getSQLState());
+        }
+
+        private static void backOff(int attempt) throws SQLException {
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextInt(10, 20) * (long) attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while retrying reservation", e);
+            }
+        }
+
+        @Override
+        public boolean addToWaitlist(String patientName, Date time, String vaccineName) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = addRequest.prepare(con)) {
+                statement.setString(1, patientName);
+                statement.setString(2, vaccineName);
+                statement.setDate(3, time);
+                statement.executeUpdate();
+                return true;
+            } catch (SQLException e) {
+                if (ConnectionManager.isDuplicateKey(e)) {
+                    return false;
+                }
+                throw e;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public boolean leaveWaitlist(String patientName, Date time, String vaccineName) throws SQLException {
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = removePatientRequest.prepare(con)) {
+                statement.setString(1, patientName);
+                statement.setDate(2, time);
+                statement.setString(3, vaccineName);
+                return statement.executeUpdate() > 0;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        @Override
+        public Appointment cancel(long apptId, String username, boolean patient) throws SQLException {
+            Query removeAppointment = patient ? removePatientAppointment : removeCaregiverAppointment;
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try {
+                con.setAutoCommit(false);
+                Appointment cancelled;
+                try (PreparedStatement statement = removeAppointment.prepare(con)) {
+                    statement.setLong(1, apptId);
+                    statement.setString(2, username);
+                    statement.setDate(3, Date.valueOf(LocalDate.now()));
+                    ResultSet resultSet = statement.executeQuery();
+                    if (!resultSet.next()) {
+                        con.rollback();
+                        return null;
+                    }
+                    cancelled = new Appointment(apptId, resultSet.getString(1), resultSet.getString(2),
+                            resultSet.getString(3), resultSet.getDate(4));
+                }
+                try (PreparedStatement statement = restoreAvailability.prepare(con)) {
+                    statement.setDate(1, cancelled.getTime());
+                    statement.setString(2, cancelled.getCaregiverName());
+                    statement.setDate(3, cancelled.getTime());
+                    statement.setString(4, cancelled.getCaregiverName());
+                    statement.executeUpdate();
+                }
+                try (PreparedStatement statement = restoreDose.prepare(con)) {
+                    statement.setString(1, cancelled.getVaccineName());
+                    statement.executeUpdate();
+                }
+                con.commit();
+                assignment.cancelled(cancelled.getCaregiverName());
+                return cancelled;
+            } finally {
+                // the pool rolls back a transaction left open by a failure when the connection is returned
+                cm.closeConnection();
+            }
+        }
+
+        // Takes the requests with UPDLOCK and READPAST, so a concurrent pass leaves them alone, and books
+        // the whole batch in one transaction
+        @Override
+        public Match matchWaitlist(Collection<Date> dates, Collection<String> vaccines, long after)
+                throws SQLException {
+            String where = where(dates, vaccines);
+            Query countRequests = Query.select("SELECT COUNT(*) FROM (SELECT TOP (" + WAITLIST_BATCH_SIZE + ") " +
+                    "w.WaitID FROM Waitlist w " + where + ") AS r", 1);
+            Query getRequests = Query.select("SELECT TOP (" + WAITLIST_BATCH_SIZE + ") w.WaitID, w.PName, w.VName, " +
+                    "w.Time FROM Waitlist w WITH (UPDLOCK, ROWLOCK, READPAST) " + where + " ORDER BY w.WaitID",
+                    WAITLIST_BATCH_SIZE);
+
+            // appointment IDs are taken before the transaction, as a block refill needs a connection of its own
+            int requests;
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = countRequests.prepare(con)) {
+                bind(statement, dates, vaccines, after);
+                ResultSet resultSet = statement.executeQuery();
+                resultSet.next();
+                requests = resultSet.getInt(1);
+            } finally {
+                cm.closeConnection();
+            }
+            List<Appointment> booked = new ArrayList<>();
+            if (requests == 0) {
+                return new Match(booked, -1);
+            }
+            List<Long> ids = new ArrayList<>();
+            for (int i = 0; i < requests; i++) {
+                ids.add(appointmentIds.nextId());
+            }
+
+            Set<Date> noCaregiver = new HashSet<>();
+            Set<String> noDoses = new HashSet<>();
+            List<String> claimedWithoutDose = new ArrayList<>();
+            long last = -1;
+            boolean committed = false;
+
+            cm = new ConnectionManager();
+            con = cm.createConnection();
+            try (PreparedStatement select = getRequests.prepare(con);
+                 PreparedStatement doses = decreaseDoses.prepare(con);
+                 PreparedStatement availability = removeAvailability.prepare(con);
+                 PreparedStatement appointments = addAppointment.prepare(con);
+                 PreparedStatement removals = removeRequest.prepare(con)) {
+                con.setAutoCommit(false);
+                bind(select, dates, vaccines, after);
+                List<Request> waiting = read(select, ids.size());
+
+                for (Request request : waiting) {
+                    last = request.getWaitId();
+                    if (noCaregiver.contains(request.getTime()) || noDoses.contains(request.getVaccineName())) {
+                        continue;
+                    }
+                    String caregiverName = assignment.claim(con, request.getTime());
+                    if (caregiverName == null) {
+                        noCaregiver.add(request.getTime());
+                        continue;
+                    }
+                    doses.setString(1, request.getVaccineName());
+                    if (doses.executeUpdate() == 0) {
+                        // the claim only locked the row, the next request for the date may use the caregiver
+                        noDoses.add(request.getVaccineName());
+                        claimedWithoutDose.add(caregiverName);
+                        continue;
+                    }
+                    // removed right away, so the next claim in this transaction cannot pick the caregiver again
+                    availability.setString(1, caregiverName);
+                    availability.setDate(2, request.getTime());
+                    availability.executeUpdate();
+
+                    long apptId = ids.get(booked.size());
+                    appointments.setString(1, request.getPatientName());
+                    appointments.setString(2, caregiverName);
+                    appointments.setString(3, request.getVaccineName());
+                    appointments.setDate(4, request.getTime());
+                    appointments.setLong(5, apptId);
+                    appointments.addBatch();
+                    removals.setLong(1, request.getWaitId());
+                    removals.addBatch();
+                    booked.add(new Appointment(apptId, request.getPatientName(), caregiverName,
+                            request.getVaccineName(), request.getTime()));
+                }
+                if (!booked.isEmpty()) {
+                    appointments.executeBatch();
+                    removals.executeBatch();
+                }
+                con.commit();
+                committed = true;
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                cm.closeConnection();
+                for (Appointment appointment : booked) {
+                    assignment.completed(appointment.getCaregiverName(), committed);
+                }
+                for (String caregiverName : claimedWithoutDose) {
+                    assignment.completed(caregiverName, false);
+                }
+            }
+            return new Match(booked, last);
+        }
+
+        @Override
+        public List<Request> waiting(Collection<Date> dates, Collection<String> vaccines, long after)
+                throws SQLException {
+            Query getRequests = Query.select("SELECT TOP (" + WAITLIST_BATCH_SIZE + ") w.WaitID, w.PName, w.VName, " +
+                    "w.Time FROM Waitlist w " + where(dates, vaccines) + " ORDER BY w.WaitID", WAITLIST_BATCH_SIZE);
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement select = getRequests.prepare(con)) {
+                bind(select, dates, vaccines, after);
+                return read(select, WAITLIST_BATCH_SIZE);
+            } finally {
+                cm.closeConnection();
+            }
+        }
+
+        private static List<Request> read(PreparedStatement select, int limit) throws SQLException {
+            List<Request> requests = new ArrayList<>();
+            ResultSet resultSet = select.executeQuery();
+            while (resultSet.next() && requests.size() < limit) {
+                requests.add(new Request(resultSet.getLong("WaitID"), resultSet.getString("PName"),
+                        resultSet.getString("VName"), resultSet.getDate("Time")));
+            }
+            resultSet.close();
+            return requests;
+        }
+
+        // Upcoming requests after a WaitID for one of the dates or vaccines, or every upcoming request, whose
+        // date has a caregiver available and whose vaccine has doses left. Seeking from the WaitID keeps
+        // requests that cannot be served from holding back the ones queued after them.
+        private static String where(Collection<Date> dates, Collection<String> vaccines) {
+            String supply = " AND EXISTS (SELECT 1 FROM Availabilities a WHERE a.Time = w.Time)" +
+                    " AND EXISTS (SELECT 1 FROM Vaccines v WHERE v.Name = w.VName AND v.Doses > 0)";
+            if (dates.size() > MAX_DATE_PARAMETERS || (dates.isEmpty() && vaccines.isEmpty())) {
+                return "WHERE w.WaitID > ? AND w.Time >= ?" + supply;
+            }
+            return "WHERE w.WaitID > ? AND w.Time >= ? AND (w.Time IN (" + placeholders(dates.size()) +
+                    ") OR w.VName IN (" + placeholders(vaccines.size()) + "))" + supply;
+        }
+
+        private static void bind(PreparedStatement statement, Collection<Date> dates, Collection<String> vaccines,
+                                 long after) throws SQLException {
+            int parameter = 1;
+            statement.setLong(parameter++, after);
+            statement.setDate(parameter++, Date.valueOf(LocalDate.now()));
+            if (dates.size() > MAX_DATE_PARAMETERS) {
+                return;
+            }
+            for (Date date : dates) {
+                statement.setDate(parameter++, date);
+            }
+            for (String vaccine : vaccines) {
+                statement.setString(parameter++, vaccine);
+            }
+        }
+
+        // "?, ?, ?" for n parameters, or a NULL that matches nothing for none
+        private static String placeholders(int n) {
+            if (n == 0) {
+                return "NULL";
+            }
+            StringBuilder placeholders = new StringBuilder("?");
+            for (int i = 1; i < n; i++) {
+                placeholders.append(", ?");
+            }
+            return placeholders.toString();
+        }
+
+        // Pages are keyed on (Time, ApptID), which the name indexes store in order, so a page costs the
+        // same however deep into the list it starts. The key comes from the caller rather than a lookup of
+        // the last row, which may have been cancelled since.
+        @Override
+        public List<Appointment> find(String username, boolean patient, Date from, long after, int limit)
+                throws SQLException {
+            String nameColumn = patient ? "PName" : "CName";
+            String getAppointmentsQuery = "SELECT TOP (?) ApptID, PName, CName, VName, Time FROM Appointment " +
+                    "WHERE " + nameColumn + " = ? AND Time >= ? " +
+                    (after < 0 ? "" : "AND (Time > ? OR ApptID > ?) ") +
+                    "ORDER BY Time, ApptID";
+            Query getAppointments = Query.select(getAppointmentsQuery, limit);
+
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = getAppointments.prepare(con)) {
+                statement.setInt(1, limit);
+                statement.setString(2, username);
+                statement.setDate(3, from);
+                if (after >= 0) {
+                    // Time >= from already holds, so this is (Time, ApptID) > (from, after)
+                    statement.setDate(4, from);
+                    statement.setLong(5, after);
+                }
+                ResultSet resultSet = statement.executeQuery();
+                List<Appointment> appointments = new ArrayList<>();
+                while (resultSet.next()) {
+                    appointments.add(new Appointment(resultSet.getLong(1), resultSet.getString(2),
+                            resultSet.getString(3), resultSet.getString(4), resultSet.getDate(5)));
+                }
+                return appointments;
+            } finally {
+                cm.closeConnection();
+            }
+        }
+    }
+}
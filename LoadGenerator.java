@@ -0,0 +1,187 @@
+package scheduler;
+
+import scheduler.db.ConnectionManager;
+import scheduler.db.ConnectionPool;
+import scheduler.model.Patient;
+import scheduler.util.LatencyHistogram;
+import scheduler.util.Util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+// Simulates a vaccination-day rush against the configured database:
+//
+//   java scheduler.LoadGenerator [--patients 1000] [--caregivers 50] [--dates 14] [--vaccines 3]
+//                                [--doses 100000] [--rate 200] [--seconds 60]
+//
+// Arrivals are open-loop: requests start on a fixed schedule whether or not earlier ones have
+// finished, and latency is measured from the scheduled start, so a saturated scheduler shows up
+// as growing latency instead of a politely slower client. Each request runs on its own thread
+// against a fresh session, mixing search, reserve, show_appointments, login and create traffic.
+public class LoadGenerator {
+
+    private static final String PASSWORD = "Load1234!";
+
+    // share of arrivals per command, in percent
+    private static final int SEARCH_PERCENT = 55;
+    private static final int RESERVE_PERCENT = 25;
+    private static final int SHOW_PERCENT = 10;
+    private static final int LOGIN_PERCENT = 5;
+
+    private final int patients;
+    private final int caregivers;
+    private final int dates;
+    private final int vaccines;
+    private final int doses;
+    private final int rate;
+    private final int seconds;
+
+    private final String prefix = "load" + Long.toString(System.currentTimeMillis(), 36) + "_";
+    private final LocalDate firstDate = LocalDate.now().plusDays(1);
+    private final PrintStream discard = new PrintStream(OutputStream.nullOutputStream());
+    private final Map<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final AtomicLong completed = new AtomicLong();
+
+    private LoadGenerator(Map<String, Integer> options) {
+        this.patients = options.getOrDefault("patients", 1000);
+        this.caregivers = options.getOrDefault("caregivers", 50);
+        this.dates = options.getOrDefault("dates", 14);
+        this.vaccines = options.getOrDefault("vaccines", 3);
+        this.doses = options.getOrDefault("doses", 100_000);
+        this.rate = options.getOrDefault("rate", 200);
+        this.seconds = options.getOrDefault("seconds", 60);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, Integer> options = new TreeMap<>();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            options.put(args[i].replaceFirst("^--", ""), Integer.parseInt(args[i + 1]));
+        }
+        LoadGenerator generator = new LoadGenerator(options);
+        generator.setUp();
+        generator.run();
+        generator.report();
+    }
+
+    // Creates the caregivers with availability over the date range, the vaccines and the patients
+    private void setUp() {
+        System.out.println("Setting up " + caregivers + " caregivers, " + patients + " patients, " +
+                vaccines + " vaccines over " + dates + " days as " + prefix + "*");
+        for (int c = 0; c < caregivers; c++) {
+            Session session = new Session(discard);
+            Scheduler.execute(session, "create_caregiver " + prefix + "cg" + c + " " + PASSWORD);
+            Scheduler.execute(session, "login_caregiver " + prefix + "cg" + c + " " + PASSWORD);
+            Scheduler.execute(session, "upload_availability " + firstDate + " " + firstDate.plusDays(dates - 1));
+            if (c == 0) {
+                for (int v = 0; v < vaccines; v++) {
+                    Scheduler.execute(session, "add_doses " + prefix + "vax" + v + " " + doses);
+                }
+            }
+        }
+        for (int p = 0; p < patients; p++) {
+            Scheduler.execute(new Session(discard), "create_patient " + patientName(p) + " " + PASSWORD);
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println("Running " + rate + " requests/s for " + seconds + "s");
+        ExecutorService workers = Util.newThreadPerTaskExecutor("load");
+        long interval = TimeUnit.SECONDS.toNanos(1) / rate;
+        long total = (long) rate * seconds;
+        long start = System.nanoTime();
+        for (long i = 0; i < total; i++) {
+            long scheduled = start + i * interval;
+            long wait = scheduled - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            workers.execute(() -> request(scheduled));
+        }
+        workers.shutdown();
+        workers.awaitTermination(5, TimeUnit.MINUTES);
+        long elapsed = System.nanoTime() - start;
+        System.out.printf("Completed %d of %d requests in %.1fs, %.1f requests/s%n",
+                completed.get(), total, elapsed / 1e9, completed.get() / (elapsed / 1e9));
+    }
+
+    private void request(long scheduled) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int roll = random.nextInt(100);
+        Session session = new Session(discard);
+        String command;
+        if (roll < SEARCH_PERCENT + RESERVE_PERCENT + SHOW_PERCENT) {
+            // skip the key derivation for the bulk of the traffic, logins are measured on their own
+            String patient = patientName(random.nextInt(patients));
+            session.setCurrentPatient(new Patient.PatientBuilder(patient, new byte[0], new byte[0]).build());
+            LocalDate date = firstDate.plusDays(random.nextInt(dates));
+            if (roll < SEARCH_PERCENT) {
+                command = "search_caregiver_schedule " + date;
+            } else if (roll < SEARCH_PERCENT + RESERVE_PERCENT) {
+                command = "reserve " + date + " " + prefix + "vax" + random.nextInt(vaccines);
+            } else {
+                command = "show_appointments";
+            }
+        } else if (roll < SEARCH_PERCENT + RESERVE_PERCENT + SHOW_PERCENT + LOGIN_PERCENT) {
+            command = "login_patient " + patientName(random.nextInt(patients)) + " " + PASSWORD;
+        } else {
+            command = "create_patient " + prefix + "new" + random.nextLong(Long.MAX_VALUE) + " " + PASSWORD;
+        }
+
+        Scheduler.execute(session, command);
+        long latency = System.nanoTime() - scheduled;
+        latencies.computeIfAbsent(command.split(" ")[0], c -> new LatencyHistogram()).record(latency / 1000);
+        completed.incrementAndGet();
+    }
+
+    private void report() throws SQLException {
+        System.out.printf("%-26s %8s %10s %10s %10s %10s %10s%n",
+                "command (latency in ms)", "count", "p50", "p90", "p99", "p99.9", "max");
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(latencies).entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            System.out.printf("%-26s %8d %10.2f %10.2f %10.2f %10.2f %10.2f%n", entry.getKey(), h.getCount(),
+                    h.getPercentile(50) / 1e3, h.getPercentile(90) / 1e3, h.getPercentile(99) / 1e3,
+                    h.getPercentile(99.9) / 1e3, h.getMax() / 1e3);
+        }
+
+        System.out.println("double-booked caregiver days: " + count(
+                "SELECT COUNT(*) FROM (SELECT CName, Time FROM Appointment WHERE CName LIKE ? " +
+                        "GROUP BY CName, Time HAVING COUNT(*) > 1) AS d"));
+        System.out.println("overdrawn vaccines: " + count(
+                "SELECT COUNT(*) FROM Vaccines WHERE Name LIKE ? AND Doses < 0"));
+
+        ConnectionPool pool = ConnectionManager.getPool();
+        System.out.printf("connection wait: avg %.3fms, max %.3fms, timeouts %d%n",
+                pool.getBorrowCount() == 0 ? 0 : pool.getTotalWaitNanos() / 1e6 / pool.getBorrowCount(),
+                pool.getMaxWaitNanos() / 1e6, pool.getTimeoutCount());
+    }
+
+    private long count(String query) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(query)) {
+            statement.setString(1, prefix + "%");
+            ResultSet resultSet = statement.executeQuery();
+            resultSet.next();
+            return resultSet.getLong(1);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private String patientName(int p) {
+        return prefix + "pt" + p;
+    }
+}
@@ -0,0 +1,476 @@
+package scheduler.db;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+// Everything in concurrent collections in this process, for tests, benchmarks and deployments
+// that cannot afford a network round trip per command. Nothing survives the process.
+//
+// A reservation keeps the guarantees of the database transaction: the caregiver is claimed by
+// removing it from the date's set, which only one thread can do, and the dose by a compare-and-set
+// that never goes below zero. A reservation that gets a caregiver but no dose puts the caregiver
+// back, so others only ever see it briefly taken, like a row locked by an open transaction.
+public class MemoryStorage extends Storage {
+
+    // SQLState of an integrity constraint violation, see ConnectionManager.isDuplicateKey
+    private static final String DUPLICATE_KEY = "23000";
+    private static final int WAITLIST_BATCH_SIZE = 100;
+
+    private final Accounts accounts = new Accounts();
+    private final Inventory inventory = new Inventory();
+    private final Availability availability = new Availability(inventory);
+    private final Appointments appointments;
+
+    public MemoryStorage() {
+        this(CaregiverAssignment.fromEnvironment());
+    }
+
+    // Claims caregivers with the given strategy rather than the configured one
+    public MemoryStorage(CaregiverAssignment assignment) {
+        appointments = new Appointments(availability, inventory, assignment);
+    }
+
+    @Override
+    public AccountRepository accounts() {
+        return accounts;
+    }
+
+    @Override
+    public AvailabilityRepository availability() {
+        return availability;
+    }
+
+    @Override
+    public InventoryRepository inventory() {
+        return inventory;
+    }
+
+    @Override
+    public AppointmentRepository appointments() {
+        return appointments;
+    }
+
+    @Override
+    public boolean usesDatabase() {
+        return false;
+    }
+
+    @Override
+    public int migrate() {
+        return 0;
+    }
+
+    // usernames and vaccine names compare case-insensitively, like under the database's default collation
+    private static String key(String name) {
+        return name.toLowerCase(Locale.ROOT);
+    }
+
+    public static class Accounts implements AccountRepository {
+        private final Map<Kind, Map<String, Credentials>> accounts = new EnumMap<>(Kind.class);
+
+        public Accounts() {
+            for (Kind kind : Kind.values()) {
+                accounts.put(kind, new ConcurrentHashMap<>());
+            }
+        }
+
+        @Override
+        public boolean create(Kind kind, Credentials credentials) {
+            return accounts.get(kind).putIfAbsent(key(credentials.getUsername()), credentials) == null;
+        }
+
+        @Override
+        public boolean exists(Kind kind, String username) {
+            return accounts.get(kind).containsKey(key(username));
+        }
+
+        @Override
+        public Credentials find(Kind kind, String username) {
+            return accounts.get(kind).get(key(username));
+        }
+
+        @Override
+        public void update(Kind kind, Credentials credentials) {
+            accounts.get(kind).replace(key(credentials.getUsername()), credentials);
+        }
+
+        @Override
+        public List<String> usernames(Kind kind) {
+            List<String> usernames = new ArrayList<>();
+            for (Credentials credentials : accounts.get(kind).values()) {
+                usernames.add(credentials.getUsername());
+            }
+            return usernames;
+        }
+    }
+
+    public static class Availability implements AvailabilityRepository {
+        private final ConcurrentNavigableMap<Date, ConcurrentSkipListSet<String>> caregiversByDate =
+                new ConcurrentSkipListMap<>();
+        private final Inventory inventory;
+
+        private Availability(Inventory inventory) {
+            this.inventory = inventory;
+        }
+
+        @Override
+        public void add(String caregiverName, Date time) throws SQLException {
+            if (!caregivers(time, true).add(caregiverName)) {
+                throw new SQLException(caregiverName + " is already available on " + time, DUPLICATE_KEY);
+            }
+        }
+
+        @Override
+        public int addAll(String caregiverName, Collection<Date> dates) {
+            int added = 0;
+            for (Date time : dates) {
+                if (caregivers(time, true).add(caregiverName)) {
+                    added++;
+                }
+            }
+            return added;
+        }
+
+        @Override
+        public SortedSet<String> caregivers(Date time) {
+            ConcurrentSkipListSet<String> caregivers = caregivers(time, false);
+            return caregivers == null ? new TreeSet<>() : new TreeSet<>(caregivers);
+        }
+
+        @Override
+        public Integer count(Date start, Date end, String vaccineName, SortedMap<Date, Integer> counts) {
+            for (Map.Entry<Date, ConcurrentSkipListSet<String>> entry :
+                    caregiversByDate.subMap(start, true, end, true).entrySet()) {
+                int count = entry.getValue().size();
+                if (count > 0) {
+                    counts.put(entry.getKey(), count);
+                }
+            }
+            return vaccineName == null ? null : inventory.doses(vaccineName);
+        }
+
+        @Override
+        public void forEach(BiConsumer<Date, String> consumer) {
+            for (Map.Entry<Date, ConcurrentSkipListSet<String>> entry : caregiversByDate.entrySet()) {
+                for (String caregiverName : entry.getValue()) {
+                    consumer.accept(entry.getKey(), caregiverName);
+                }
+            }
+        }
+
+        // Takes a caregiver free on the date with the strategy, or returns null
+        private String claim(Date time, CaregiverAssignment assignment, CaregiverAssignment.Loads loads)
+                throws SQLException {
+            ConcurrentSkipListSet<String> caregivers = caregivers(time, false);
+            return caregivers == null ? null : assignment.claim(caregivers, loads);
+        }
+
+        private void release(Date time, String caregiverName) {
+            caregivers(time, true).add(caregiverName);
+        }
+
+        private ConcurrentSkipListSet<String> caregivers(Date time, boolean create) {
+            return create ? caregiversByDate.computeIfAbsent(time,
+                    d -> new ConcurrentSkipListSet<>(String.CASE_INSENSITIVE_ORDER)) : caregiversByDate.get(time);
+        }
+    }
+
+    public static class Inventory implements InventoryRepository {
+        // by key(name)
+        private final Map<String, Stock> stocks = new ConcurrentHashMap<>();
+
+        @Override
+        public Integer doses(String vaccineName) {
+            Stock stock = stocks.get(key(vaccineName));
+            return stock == null ? null : stock.doses.get();
+        }
+
+        @Override
+        public void create(String vaccineName, int doses) throws SQLException {
+            if (stocks.putIfAbsent(key(vaccineName), new Stock(vaccineName, doses)) != null) {
+                throw new SQLException("Vaccine " + vaccineName + " already exists", DUPLICATE_KEY);
+            }
+        }
+
+        @Override
+        public Integer addDoses(String vaccineName, int delta) {
+            Stock stock = stocks.get(key(vaccineName));
+            if (stock == null) {
+                return null;
+            }
+            while (true) {
+                int current = stock.doses.get();
+                if (current + delta < 0) {
+                    return null;
+                }
+                if (stock.doses.compareAndSet(current, current + delta)) {
+                    return current + delta;
+                }
+            }
+        }
+
+        @Override
+        public void addAll(Map<String, Integer> doses) {
+            for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+                stocks.computeIfAbsent(key(entry.getKey()), v -> new Stock(entry.getKey(), 0)).doses
+                        .addAndGet(entry.getValue());
+            }
+        }
+
+        @Override
+        public Map<String, Integer> all() {
+            Map<String, Integer> all = new HashMap<>();
+            for (Stock stock : stocks.values()) {
+                all.put(stock.name, stock.doses.get());
+            }
+            return all;
+        }
+
+        // Takes one dose, never going below zero
+        private AppointmentRepository.Outcome take(String vaccineName) {
+            if (!stocks.containsKey(key(vaccineName))) {
+                return AppointmentRepository.Outcome.VACCINE_NOT_FOUND;
+            }
+            return addDoses(vaccineName, -1) == null ? AppointmentRepository.Outcome.NOT_ENOUGH_DOSES
+                    : AppointmentRepository.Outcome.RESERVED;
+        }
+
+        // a vaccine's doses, under the name it was created with
+        private static final class Stock {
+            private final String name;
+            private final AtomicInteger doses;
+
+            private Stock(String name, int doses) {
+                this.name = name;
+                this.doses = new AtomicInteger(doses);
+            }
+        }
+    }
+
+    public static class Appointments implements AppointmentRepository {
+        // a user's appointments in page order
+        private static final Comparator<Appointment> BY_TIME =
+                Comparator.comparing(Appointment::getTime).thenComparingLong(Appointment::getApptId);
+
+        private final Availability availability;
+        private final Inventory inventory;
+
+        // claims the caregiver, see CaregiverAssignment
+        private final CaregiverAssignment assignment;
+
+        private final AtomicLong ids = new AtomicLong();
+        private final Map<Long, Appointment> byId = new ConcurrentHashMap<>();
+        private final Map<String, ConcurrentSkipListSet<Appointment>> byPatient = new ConcurrentHashMap<>();
+        private final Map<String, ConcurrentSkipListSet<Appointment>> byCaregiver = new ConcurrentHashMap<>();
+
+        // waiting requests in WaitID order, and the WaitID by patient, date and vaccine so nobody waits twice
+        private final AtomicLong waitIds = new AtomicLong();
+        private final ConcurrentSkipListMap<Long, Request> waitlist = new ConcurrentSkipListMap<>();
+        private final Map<String, Long> waiting = new ConcurrentHashMap<>();
+
+        private Appointments(Availability availability, Inventory inventory, CaregiverAssignment assignment) {
+            this.availability = availability;
+            this.inventory = inventory;
+            this.assignment = assignment;
+        }
+
+        @Override
+        public long nextId() {
+            return ids.incrementAndGet();
+        }
+
+        @Override
+        public Reservation reserve(String patientName, Date time, String vaccineName) throws SQLException {
+            String caregiverName = availability.claim(time, assignment, this::upcoming);
+            if (caregiverName == null) {
+                return new Reservation(Outcome.NO_CAREGIVER, null);
+            }
+            Outcome outcome = inventory.take(vaccineName);
+            if (outcome != Outcome.RESERVED) {
+                availability.release(time, caregiverName);
+                assignment.completed(caregiverName, false);
+                return new Reservation(outcome, null);
+            }
+            Appointment appointment = new Appointment(nextId(), patientName, caregiverName, vaccineName, time);
+            byId.put(appointment.getApptId(), appointment);
+            byPatient.computeIfAbsent(key(patientName), p -> new ConcurrentSkipListSet<>(BY_TIME)).add(appointment);
+            byCaregiver.computeIfAbsent(key(caregiverName), c -> new ConcurrentSkipListSet<>(BY_TIME)).add(appointment);
+            assignment.completed(caregiverName, true);
+            // a patient who was waiting for this date and vaccine must not be matched to a second appointment
+            leaveWaitlist(patientName, time, vaccineName);
+            return new Reservation(Outcome.RESERVED, appointment);
+        }
+
+        // Upcoming appointments per caregiver, for CaregiverAssignment.LeastLoaded
+        private Map<String, Integer> upcoming() {
+            Appointment today = new Appointment(Long.MIN_VALUE, null, null, null, Date.valueOf(LocalDate.now()));
+            Map<String, Integer> counts = new HashMap<>();
+            for (ConcurrentSkipListSet<Appointment> appointments : byCaregiver.values()) {
+                NavigableSet<Appointment> upcoming = appointments.tailSet(today, true);
+                if (!upcoming.isEmpty()) {
+                    counts.put(upcoming.first().getCaregiverName(), upcoming.size());
+                }
+            }
+            return counts;
+        }
+
+        @Override
+        public boolean addToWaitlist(String patientName, Date time, String vaccineName) {
+            long waitId = waitIds.incrementAndGet();
+            // both maps change under the request's entry in waiting, as in leaveWaitlist, so a patient leaving
+            // meanwhile never leaves a request behind in the queue
+            return waiting.computeIfAbsent(requestKey(patientName, time, vaccineName), requestKey -> {
+                waitlist.put(waitId, new Request(waitId, patientName, vaccineName, time));
+                return waitId;
+            }) == waitId;
+        }
+
+        @Override
+        public boolean leaveWaitlist(String patientName, Date time, String vaccineName) {
+            boolean[] left = {false};
+            waiting.computeIfPresent(requestKey(patientName, time, vaccineName), (requestKey, waitId) -> {
+                waitlist.remove(waitId);
+                left[0] = true;
+                return null;
+            });
+            return left[0];
+        }
+
+        @Override
+        public Match matchWaitlist(Collection<Date> dates, Collection<String> vaccines, long after)
+                throws SQLException {
+            Set<Date> noCaregiver = new HashSet<>();
+            Set<String> noDoses = new HashSet<>();
+            List<Appointment> booked = new ArrayList<>();
+            long last = -1;
+            for (Request request : waiting(dates, vaccines, after)) {
+                last = request.getWaitId();
+                if (noCaregiver.contains(request.getTime()) || noDoses.contains(key(request.getVaccineName()))) {
+                    continue;
+                }
+                // taken off the list first, so a concurrent pass cannot book it as well
+                if (waitlist.remove(request.getWaitId()) == null) {
+                    continue;
+                }
+                // a booking takes the patient off the waitlist, see reserve
+                Reservation reservation = reserve(request.getPatientName(), request.getTime(),
+                        request.getVaccineName());
+                if (reservation.getAppointment() != null) {
+                    booked.add(reservation.getAppointment());
+                    continue;
+                }
+                // back in its place in the queue, unless the patient left it meanwhile
+                waiting.computeIfPresent(requestKey(request.getPatientName(), request.getTime(),
+                        request.getVaccineName()), (requestKey, waitId) -> {
+                    if (waitId == request.getWaitId()) {
+                        waitlist.put(waitId, request);
+                    }
+                    return waitId;
+                });
+                if (reservation.getOutcome() == Outcome.NO_CAREGIVER) {
+                    noCaregiver.add(request.getTime());
+                } else {
+                    noDoses.add(key(request.getVaccineName()));
+                }
+            }
+            return new Match(booked, last);
+        }
+
+        // Like the database's query, only requests whose date has a caregiver and whose vaccine has doses
+        @Override
+        public List<Request> waiting(Collection<Date> dates, Collection<String> vaccines, long after) {
+            Date today = Date.valueOf(LocalDate.now());
+            boolean all = dates.isEmpty() && vaccines.isEmpty();
+            Set<Date> dateSet = new HashSet<>(dates);
+            Set<String> vaccineSet = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+            vaccineSet.addAll(vaccines);
+            List<Request> requests = new ArrayList<>();
+            Iterator<Request> it = waitlist.tailMap(after, false).values().iterator();
+            while (it.hasNext() && requests.size() < WAITLIST_BATCH_SIZE) {
+                Request request = it.next();
+                if (!request.getTime().before(today)
+                        && (all || dateSet.contains(request.getTime()) || vaccineSet.contains(request.getVaccineName()))
+                        && hasSupply(request)) {
+                    requests.add(request);
+                }
+            }
+            return requests;
+        }
+
+        private boolean hasSupply(Request request) {
+            ConcurrentSkipListSet<String> caregivers = availability.caregivers(request.getTime(), false);
+            Integer doses = inventory.doses(request.getVaccineName());
+            return caregivers != null && !caregivers.isEmpty() && doses != null && doses > 0;
+        }
+
+        @Override
+        public List<Appointment> find(String username, boolean patient, Date from, long after, int limit) {
+            ConcurrentSkipListSet<Appointment> appointments = (patient ? byPatient : byCaregiver).get(key(username));
+            if (appointments == null) {
+                return Collections.emptyList();
+            }
+            // ordered by BY_TIME, so the key need not be an appointment that still exists
+            NavigableSet<Appointment> page = after < 0
+                    ? appointments.tailSet(new Appointment(Long.MIN_VALUE, null, null, null, from), true)
+                    : appointments.tailSet(new Appointment(after, null, null, null, from), false);
+            List<Appointment> found = new ArrayList<>();
+            for (Appointment appointment : page) {
+                if (found.size() == limit) {
+                    break;
+                }
+                found.add(appointment);
+            }
+            return found;
+        }
+
+        @Override
+        public Appointment cancel(long apptId, String username, boolean patient) {
+            Appointment appointment = byId.get(apptId);
+            if (appointment == null || appointment.getTime().before(Date.valueOf(LocalDate.now()))) {
+                return null;
+            }
+            String owner = patient ? appointment.getPatientName() : appointment.getCaregiverName();
+            if (!key(owner).equals(key(username))) {
+                return null;
+            }
+            // only one of concurrent cancellations gets to remove it
+            if (!byId.remove(apptId, appointment)) {
+                return null;
+            }
+            byPatient.get(key(appointment.getPatientName())).remove(appointment);
+            byCaregiver.get(key(appointment.getCaregiverName())).remove(appointment);
+            availability.release(appointment.getTime(), appointment.getCaregiverName());
+            inventory.addDoses(appointment.getVaccineName(), 1);
+            assignment.cancelled(appointment.getCaregiverName());
+            return appointment;
+        }
+
+        private static String requestKey(String patientName, Date time, String vaccineName) {
+            return key(patientName) + ' ' + time + ' ' + key(vaccineName);
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package scheduler.util;
+
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+// Process-wide counters and per-command latency histograms. Everything is a LongAdder or a
+// lock-free histogram, so recording costs a few nanoseconds and can stay on in production.
+public class Metrics {
+
+    private static final ConcurrentHashMap<String, LatencyHistogram> commandLatency = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, LongAdder> errors = new ConcurrentHashMap<>();
+    private static final LongAdder dbRoundTrips = new LongAdder();
+    private static final LongAdder connectionAcquisitions = new LongAdder();
+    private static final LongAdder pbkdf2Invocations = new LongAdder();
+    private static final LongAdder statementsPrepared = new LongAdder();
+    private static final LongAdder statementsReused = new LongAdder();
+    private static final LongAdder deadLetters = new LongAdder();
+
+    // set when the running command hits an error, so its JFR event can be marked as failed
+    private static final ThreadLocal<Boolean> commandFailed = ThreadLocal.withInitial(() -> false);
+
+    private Metrics() {
+    }
+
+    public static void recordCommand(String command, long nanos) {
+        commandLatency.computeIfAbsent(command, c -> new LatencyHistogram()).record(nanos / 1000);
+    }
+
+    // count commands written together in one batch, each is recorded with an equal share of the time
+    public static void recordCommands(String command, int count, long nanos) {
+        LatencyHistogram latency = commandLatency.computeIfAbsent(command, c -> new LatencyHistogram());
+        for (int i = 0; i < count; i++) {
+            latency.record(nanos / count / 1000);
+        }
+    }
+
+    public static void recordRoundTrip() {
+        dbRoundTrips.increment();
+    }
+
+    public static void recordConnectionAcquired() {
+        connectionAcquisitions.increment();
+    }
+
+    public static void recordPbkdf2() {
+        pbkdf2Invocations.increment();
+    }
+
+    // A prepareStatement call, served from the connection's statement cache or prepared anew
+    public static void recordStatement(boolean reused) {
+        (reused ? statementsReused : statementsPrepared).increment();
+    }
+
+    // A journaled reservation the write-behind writer gave up on, see WriteBehind
+    public static void recordDeadLetter() {
+        deadLetters.increment();
+    }
+
+    // Counts an error by its cause, e.g. SQLException[08S01/0] or IllegalStateException
+    public static void recordError(Throwable e) {
+        String cause = e.getClass().getSimpleName();
+        if (e instanceof SQLException) {
+            SQLException sql = (SQLException) e;
+            cause += "[" + sql.getSQLState() + "/" + sql.getErrorCode() + "]";
+        }
+        errors.computeIfAbsent(cause, c -> new LongAdder()).increment();
+        commandFailed.set(true);
+    }
+
+    // Whether an error was recorded on this thread since the last call
+    public static boolean takeCommandFailed() {
+        boolean failed = commandFailed.get();
+        commandFailed.set(false);
+        return failed;
+    }
+
+    public static long getDbRoundTrips() {
+        return dbRoundTrips.sum();
+    }
+
+    public static long getConnectionAcquisitions() {
+        return connectionAcquisitions.sum();
+    }
+
+    public static long getPbkdf2Invocations() {
+        return pbkdf2Invocations.sum();
+    }
+
+    public static long getStatementsPrepared() {
+        return statementsPrepared.sum();
+    }
+
+    public static long getStatementsReused() {
+        return statementsReused.sum();
+    }
+
+    public static long getDeadLetters() {
+        return deadLetters.sum();
+    }
+
+    public static LatencyHistogram getCommandLatency(String command) {
+        return commandLatency.get(command);
+    }
+
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-26s %8s %10s %10s %10s %10s %10s%n",
+                "command (latency in us)", "count", "mean", "p50", "p90", "p99", "max"));
+        for (Map.Entry<String, LatencyHistogram> entry : new TreeMap<>(commandLatency).entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            sb.append(String.format("%-26s %8d %10.0f %10d %10d %10d %10d%n", entry.getKey(), h.getCount(),
+                    h.getMean(), h.getPercentile(50), h.getPercentile(90), h.getPercentile(99), h.getMax()));
+        }
+        sb.append("db round trips ").append(dbRoundTrips.sum())
+                .append(", connection acquisitions ").append(connectionAcquisitions.sum())
+                .append(", pbkdf2 invocations ").append(pbkdf2Invocations.sum()).append(System.lineSeparator());
+        sb.append("statements prepared ").append(statementsPrepared.sum())
+                .append(", reused ").append(statementsReused.sum()).append(System.lineSeparator());
+        sb.append("write-behind dead letters ").append(deadLetters.sum()).append(System.lineSeparator());
+        sb.append("errors");
+        if (errors.isEmpty()) {
+            sb.append(" none");
+        }
+        for (Map.Entry<String, LongAdder> entry : new TreeMap<>(errors).entrySet()) {
+            sb.append(' ').append(entry.getKey()).append('=').append(entry.getValue().sum());
+        }
+        return sb.toString();
+    }
+
+    // Prints the report to stderr every given number of seconds, off when seconds <= 0
+    public static void startPeriodicDump(int seconds, Supplier<String> report) {
+        if (seconds <= 0) {
+            return;
+        }
+        ScheduledExecutorService dumper = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics-dump");
+            t.setDaemon(true);
+            return t;
+        });
+        dumper.scheduleAtFixedRate(() -> System.err.println(report.get()), seconds, seconds, TimeUnit.SECONDS);
+    }
+}
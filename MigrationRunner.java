@@ -0,0 +1,124 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// Applies the numbered scripts in the migrations directory (MigrationsDir, default "migrations")
+// that are not yet recorded in SchemaVersion, in order, each in its own transaction together
+// with its SchemaVersion row. Scripts are split into batches on GO lines like sqlcmd does, and
+// are written to be idempotent so a database changed by hand can still be brought up to date.
+public class MigrationRunner {
+
+    private static final Pattern FILE_NAME = Pattern.compile("(\\d+)_.*\\.sql");
+    private static final Pattern BATCH_SEPARATOR = Pattern.compile("(?im)^\\s*GO\\s*$");
+
+    private static final String createVersionTable = "IF OBJECT_ID('SchemaVersion') IS NULL " +
+            "CREATE TABLE SchemaVersion (Version int NOT NULL PRIMARY KEY, Name varchar(255) NOT NULL, " +
+            "AppliedAt datetime2 NOT NULL DEFAULT SYSUTCDATETIME())";
+    // the key-range lock makes a second process starting at the same time wait, then skip the version
+    private static final String checkVersion = "SELECT 1 FROM SchemaVersion WITH (UPDLOCK, HOLDLOCK) WHERE Version = ?";
+    private static final String recordVersion = "INSERT INTO SchemaVersion (Version, Name) VALUES (?, ?)";
+
+    private MigrationRunner() {
+    }
+
+    // Brings the schema up to date, returns the number of migrations applied
+    public static int migrate() throws IOException, SQLException {
+        String directory = System.getenv("MigrationsDir");
+        Map<Integer, Path> scripts = list(Paths.get(directory == null || directory.isEmpty() ? "migrations" : directory));
+        if (scripts.isEmpty()) {
+            return 0;
+        }
+
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            try (Statement statement = con.createStatement()) {
+                statement.execute(createVersionTable);
+            }
+            int applied = 0;
+            for (Map.Entry<Integer, Path> script : scripts.entrySet()) {
+                if (apply(con, script.getKey(), script.getValue())) {
+                    applied++;
+                }
+            }
+            return applied;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Migration scripts by version, empty if the directory does not exist
+    private static Map<Integer, Path> list(Path directory) throws IOException {
+        Map<Integer, Path> scripts = new TreeMap<>();
+        if (!Files.isDirectory(directory)) {
+            return scripts;
+        }
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.sql")) {
+            for (Path file : files) {
+                Matcher matcher = FILE_NAME.matcher(file.getFileName().toString());
+                if (!matcher.matches()) {
+                    continue;
+                }
+                Path other = scripts.put(Integer.parseInt(matcher.group(1)), file);
+                if (other != null) {
+                    throw new IOException("Two migrations with version " + matcher.group(1) + ": " +
+                            other.getFileName() + " and " + file.getFileName());
+                }
+            }
+        }
+        return scripts;
+    }
+
+    private static boolean apply(Connection con, int version, Path script) throws IOException, SQLException {
+        List<String> batches = new ArrayList<>();
+        for (String batch : BATCH_SEPARATOR.split(new String(Files.readAllBytes(script), StandardCharsets.UTF_8))) {
+            if (!batch.trim().isEmpty()) {
+                batches.add(batch);
+            }
+        }
+
+        con.setAutoCommit(false);
+        try {
+            try (PreparedStatement statement = con.prepareStatement(checkVersion)) {
+                statement.setInt(1, version);
+                if (statement.executeQuery().next()) {
+                    con.commit();
+                    return false;
+                }
+            }
+            try (Statement statement = con.createStatement()) {
+                for (String batch : batches) {
+                    statement.execute(batch);
+                }
+            }
+            try (PreparedStatement statement = con.prepareStatement(recordVersion)) {
+                statement.setInt(1, version);
+                statement.setString(2, script.getFileName().toString());
+                statement.executeUpdate();
+            }
+            con.commit();
+            return true;
+        } catch (SQLException e) {
+            con.rollback();
+            throw new SQLException("Migration " + script.getFileName() + " failed: " + e.getMessage(),
+                    e.getSQLState(), e.getErrorCode(), e);
+        } finally {
+            con.setAutoCommit(true);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
+import scheduler.db.AccountRepository;
+import scheduler.db.Storage;
+import scheduler.db.UsernameFilter;
+import scheduler.util.HashingService;
 import scheduler.util.Util;
 
 import java.sql.*;
@@ -37,22 +40,13 @@ public class Patient {
         return hash;
     }
 
-    public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addPatient = "INSERT INTO Patients VALUES (?, ?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addPatient);
-            statement.setString(1, this.username);
-            statement.setBytes(2, this.salt);
-            statement.setBytes(3, this.hash);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+    // Inserts the account, returns false if the username is already taken
+    public boolean saveToDB() throws SQLException {
+        boolean created = Storage.get().accounts().create(AccountRepository.Kind.PATIENT,
+                new AccountRepository.Credentials(this.username, this.salt, this.hash,
+                        HashingService.getInstance().getIterations(), HashingService.getInstance().getKeyLength()));
+        UsernameFilter.PATIENTS.add(this.username);
+        return created;
     }
 
     public static class PatientBuilder {
@@ -83,33 +77,39 @@ public class Patient {
         }
 
         public Patient get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
+            AccountRepository.Credentials stored = Storage.get().accounts().find(AccountRepository.Kind.PATIENT,
+                    this.username);
+            if (stored == null) {
+                return null;
+            }
+            // check if the password matches, using the parameters the hash was stored with
+            byte[] calculatedHash = Util.generateHash(password, stored.getSalt(), stored.getIterations(),
+                    stored.getKeyLength());
+            if (!Arrays.equals(stored.getHash(), calculatedHash)) {
+                return null;
+            }
+            this.salt = stored.getSalt();
+            this.hash = stored.getHash();
+            upgradeHash(stored.getIterations(), stored.getKeyLength());
+            return new Patient(this);
+        }
 
-            String getPatient = "SELECT Salt, Hash FROM Patients WHERE Username = ?";
+        // Re-hashes the password with the current settings after a successful login
+        private void upgradeHash(int iterations, int keyLength) {
+            if (!HashingService.getInstance().needsRehash(iterations, keyLength)) {
+                return;
+            }
             try {
-                PreparedStatement statement = con.prepareStatement(getPatient);
-                statement.setString(1, this.username);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    byte[] salt = resultSet.getBytes("Salt");
-                    byte[] hash = Util.trim(resultSet.getBytes("Hash"));
-                    byte[] calculatedHash = Util.generateHash(password, salt);
-
-                    if (!Arrays.equals(hash, calculatedHash)) {
-                        return null;
-                    } else {
-                        this.salt = salt;
-                        this.hash = hash;
-                        return new Patient(this);
-                    }
-                }
-                return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
+                byte[] salt = Util.generateSalt();
+                byte[] hash = Util.generateHash(password, salt);
+                Storage.get().accounts().update(AccountRepository.Kind.PATIENT,
+                        new AccountRepository.Credentials(this.username, salt, hash,
+                                HashingService.getInstance().getIterations(), HashingService.getInstance().getKeyLength()));
+                this.salt = salt;
+                this.hash = hash;
+            } catch (SQLException | IllegalStateException e) {
+                // keep the old hash, the upgrade is tried again on the next login
             }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,80 @@
+package scheduler.db;
+
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+// A statement and how to run it: the rows fetched per round trip, how long it may run, and whether
+// it only reads. prepare() takes the statement from the connection's StatementCache, so the SQL is
+// parsed and planned once per pooled connection; closing the statement hands it back.
+public final class Query {
+
+    // QueryTimeoutSeconds bounds every statement that does not set its own, 0 waits forever
+    private static final int DEFAULT_TIMEOUT_SECONDS = Util.getEnvInt("QueryTimeoutSeconds", 30);
+
+    private final String sql;
+    private final int fetchSize;
+    private final int timeoutSeconds;
+    private final boolean readOnly;
+
+    private Query(String sql, int fetchSize, int timeoutSeconds, boolean readOnly) {
+        this.sql = sql;
+        this.fetchSize = fetchSize;
+        this.timeoutSeconds = timeoutSeconds;
+        this.readOnly = readOnly;
+    }
+
+    // A query reading up to fetchSize rows per round trip (0 leaves it to the driver)
+    public static Query select(String sql, int fetchSize) {
+        return new Query(sql, fetchSize, DEFAULT_TIMEOUT_SECONDS, true);
+    }
+
+    // An insert, update, delete or merge, including ones that return rows with OUTPUT
+    public static Query update(String sql) {
+        return new Query(sql, 0, DEFAULT_TIMEOUT_SECONDS, false);
+    }
+
+    // The same query with its own timeout, for the few that scan whole tables
+    public Query withTimeout(int seconds) {
+        return new Query(sql, fetchSize, seconds, readOnly);
+    }
+
+    // Reads are prepared forward-only and read-only, the cheapest cursor the driver has. The hints are
+    // set on every call, as a cached statement keeps whatever its last user set.
+    public PreparedStatement prepare(Connection con) throws SQLException {
+        PreparedStatement statement = readOnly
+                ? con.prepareStatement(sql, ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)
+                : con.prepareStatement(sql);
+        try {
+            statement.setFetchSize(fetchSize);
+            statement.setQueryTimeout(timeoutSeconds);
+            if (readOnly) {
+                statement.setFetchDirection(ResultSet.FETCH_FORWARD);
+            }
+            return statement;
+        } catch (SQLException e) {
+            statement.close();
+            throw e;
+        }
+    }
+
+    // Getters
+    public String getSql() {
+        return sql;
+    }
+
+    public int getFetchSize() {
+        return fetchSize;
+    }
+
+    public int getTimeoutSeconds() {
+        return timeoutSeconds;
+    }
+
+    public boolean isReadOnly() {
+        return readOnly;
+    }
+}
@@ -0,0 +1,269 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+// Journal in a memory-mapped file used as a ring buffer, for records that must survive a crash
+// before they reach the database. Layout:
+//   header   int magic, int lap of the checkpoint, long checkpoint (offset of the first record
+//            not yet applied)
+//   records  int payload length (negated once discarded), int lap, long CRC32 of the lap and
+//            payload, payload
+// Records are appended after the last one until the end of the file, then a wrap marker sends the
+// next one back to the start, one lap further, as long as it ends before the checkpoint: space is
+// reclaimed as soon as the records in it are applied, so a steady stream of appends never has to
+// wait for the journal to drain. Every append is followed by a zero length, so replay stops at the
+// end of the written records; a record torn by a crash fails its checksum, and one left from an
+// earlier lap has the wrong lap. sync() waits for a sync thread that forces the
+// mapping once for everything appended so far, so callers syncing at the same time share one force
+// (group commit) and a burst of appends costs a handful of fsyncs rather than one each.
+public class ReservationJournal {
+
+    private static final int MAGIC = 0x52534A32;
+    private static final int HEADER_SIZE = 16;
+    private static final int LAP_OFFSET = 4;
+    private static final int CHECKPOINT_OFFSET = 8;
+    private static final int RECORD_HEADER_SIZE = 16;
+    // in place of a length: the next record is at the start of the file; a negated length marks a
+    // discarded record
+    private static final int WRAP = Integer.MIN_VALUE;
+
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    // guarded by this; the journal has wrapped when written is behind checkpoint, and is empty when
+    // they are equal. appended counts records, so it keeps growing when the file starts over.
+    private int written;
+    private int lap;
+    private int checkpoint;
+    private int checkpointLap;
+    private long appended = 0;
+
+    // guarded by syncLock; forces numbers the forces started, failedForce is the last one that failed
+    private final Object syncLock = new Object();
+    private long synced = 0;
+    private boolean syncRequested = false;
+    private long forces = 0;
+    private long failedForce = 0;
+    private IOException syncFailure = null;
+
+    public static class Record {
+        private final int end;
+        private final byte[] payload;
+
+        private Record(int end, byte[] payload) {
+            this.end = end;
+            this.payload = payload;
+        }
+
+        // Getters
+        public int getEnd() {
+            return end;
+        }
+
+        public byte[] getPayload() {
+            return payload;
+        }
+    }
+
+    public ReservationJournal(Path file, int capacity) throws IOException {
+        this.capacity = capacity;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+        }
+        long stored = buffer.getLong(CHECKPOINT_OFFSET);
+        if (buffer.getInt(0) != MAGIC || stored < HEADER_SIZE || stored > capacity - 4) {
+            buffer.putInt(0, MAGIC);
+            buffer.putInt(LAP_OFFSET, 0);
+            buffer.putLong(CHECKPOINT_OFFSET, HEADER_SIZE);
+            buffer.putInt(HEADER_SIZE, 0);
+            buffer.force();
+            stored = HEADER_SIZE;
+        }
+        this.checkpoint = (int) stored;
+        this.checkpointLap = buffer.getInt(LAP_OFFSET);
+        this.written = checkpoint;
+        this.lap = checkpointLap;
+
+        Thread syncer = new Thread(this::syncLoop, "journal-sync");
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    // Records after the checkpoint, in order; the journal continues after the last valid one
+    public synchronized List<Record> replay() {
+        List<Record> records = new ArrayList<>();
+        int position = checkpoint;
+        int recordLap = checkpointLap;
+        // past the wrap marker the records must end before the checkpoint
+        int limit = capacity;
+        while (position + 4 <= limit) {
+            int length = buffer.getInt(position);
+            boolean discarded = length < 0 && length != WRAP;
+            if (discarded) {
+                length = -length;
+            }
+            if (length == WRAP && limit == capacity) {
+                position = HEADER_SIZE;
+                recordLap++;
+                limit = checkpoint;
+                continue;
+            }
+            if (length <= 0 || length > limit - position - RECORD_HEADER_SIZE - 4
+                    || buffer.getInt(position + 4) != recordLap) {
+                break;
+            }
+            int end = position + RECORD_HEADER_SIZE + length;
+            byte[] payload = new byte[length];
+            buffer.get(position + RECORD_HEADER_SIZE, payload);
+            if (checksum(recordLap, payload) != buffer.getLong(position + 8)) {
+                break;
+            }
+            position = end;
+            if (!discarded) {
+                records.add(new Record(position, payload));
+            }
+        }
+        written = position;
+        lap = recordLap;
+        terminate();
+        return records;
+    }
+
+    // Writes the record, returns its end offset for checkpoint(), or -1 if the journal is full, that
+    // is if the record would run into the oldest record not yet applied. The record is durable once a
+    // later sync() returns.
+    public synchronized int append(byte[] payload) {
+        int start = written;
+        int recordLap = lap;
+        int end = start + RECORD_HEADER_SIZE + payload.length;
+        if (written < checkpoint) {
+            if (end + 4 > checkpoint) {
+                return -1;
+            }
+        } else if (end + 4 > capacity) {
+            start = HEADER_SIZE;
+            recordLap++;
+            end = start + RECORD_HEADER_SIZE + payload.length;
+            if (end + 4 > checkpoint) {
+                return -1;
+            }
+        }
+        buffer.put(start + RECORD_HEADER_SIZE, payload);
+        buffer.putInt(start + 4, recordLap);
+        buffer.putLong(start + 8, checksum(recordLap, payload));
+        buffer.putInt(end, 0);
+        // the length goes last, so a record is never visible before its payload, and the wrap marker
+        // after it, so replay never follows the marker to a record not yet written
+        buffer.putInt(start, payload.length);
+        if (start != written) {
+            buffer.putInt(written, WRAP);
+        }
+        written = end;
+        lap = recordLap;
+        appended++;
+        return end;
+    }
+
+    // Blocks until every record appended before the call is on disk. Fails if a force started after
+    // the call fails; an earlier failure does not count, so the journal recovers once forces succeed.
+    public void sync() throws IOException {
+        long sequence;
+        synchronized (this) {
+            sequence = appended;
+        }
+        synchronized (syncLock) {
+            long requestedAfter = forces;
+            while (synced < sequence) {
+                if (failedForce > requestedAfter) {
+                    throw syncFailure;
+                }
+                syncRequested = true;
+                syncLock.notifyAll();
+                try {
+                    syncLock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for the journal");
+                }
+            }
+        }
+    }
+
+    // Marks an appended record so replay skips it, for a record its writer gave up on. Like an append
+    // the mark is durable once a later sync() returns.
+    public synchronized void discard(int end, int length) {
+        buffer.putInt(end - RECORD_HEADER_SIZE - length, -length);
+    }
+
+    // Records everything before the end offset of a record as applied, which frees its space for
+    // new records
+    public synchronized void checkpoint(int end) {
+        // records only end behind the checkpoint once the journal has wrapped
+        if (end < checkpoint) {
+            checkpointLap++;
+        }
+        checkpoint = end;
+        buffer.putInt(LAP_OFFSET, checkpointLap);
+        buffer.putLong(CHECKPOINT_OFFSET, checkpoint);
+        buffer.force(0, HEADER_SIZE);
+    }
+
+    private void terminate() {
+        if (written + 4 <= capacity) {
+            buffer.putInt(written, 0);
+        }
+    }
+
+    private static long checksum(int recordLap, byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(recordLap >>> 24);
+        crc.update(recordLap >>> 16);
+        crc.update(recordLap >>> 8);
+        crc.update(recordLap);
+        crc.update(payload);
+        return crc.getValue();
+    }
+
+    private void syncLoop() {
+        while (true) {
+            long force;
+            synchronized (syncLock) {
+                while (!syncRequested) {
+                    try {
+                        syncLock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                syncRequested = false;
+                force = ++forces;
+            }
+            long target;
+            synchronized (this) {
+                target = appended;
+            }
+            try {
+                buffer.force();
+                synchronized (syncLock) {
+                    synced = Math.max(synced, target);
+                    syncLock.notifyAll();
+                }
+            } catch (RuntimeException e) {
+                synchronized (syncLock) {
+                    syncFailure = new IOException("Could not sync the journal", e);
+                    failedForce = force;
+                    syncLock.notifyAll();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.Statement;
+
+// Wraps pooled connections so every statement execution, commit and rollback is counted as a
+// database round trip in Metrics, without touching the code that issues them
+class RoundTripCounter implements InvocationHandler {
+
+    private final Object target;
+
+    private RoundTripCounter(Object target) {
+        this.target = target;
+    }
+
+    static Connection wrap(Connection con) {
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new RoundTripCounter(con));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("equals") && args != null && args.length == 1) {
+            return proxy == args[0];
+        }
+        if (name.startsWith("execute") || name.equals("commit") || name.equals("rollback")) {
+            Metrics.recordRoundTrip();
+        }
+        Object result;
+        try {
+            result = method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+        // statements created by the connection are wrapped too, so their executions are counted
+        if (result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+            return Proxy.newProxyInstance(Statement.class.getClassLoader(),
+                    new Class<?>[]{method.getReturnType()}, new RoundTripCounter(result));
+        }
+        return result;
+    }
+}
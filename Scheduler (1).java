@@ -1,49 +1,132 @@
 package scheduler;
 
+import scheduler.db.AccountRepository;
+import scheduler.db.AppointmentRepository;
+import scheduler.db.AvailabilityIndex;
 import scheduler.db.ConnectionManager;
-import scheduler.model.Caregiver;
-import scheduler.model.Patient;
+import scheduler.db.DoseCache;
+import scheduler.db.Storage;
+import scheduler.db.WriteBehind;
 import scheduler.model.Vaccine;
+import scheduler.model.Waitlist;
+import scheduler.util.CommandEvent;
+import scheduler.util.Metrics;
 import scheduler.util.Util;
 
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
 import java.sql.SQLException;
 import java.sql.Date;
-import java.util.Arrays;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
 
 public class Scheduler {
 
-    // objects to keep track of the currently logged-in user
-    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
-    //       since only one user can be logged-in at a time
-    private static Caregiver currentCaregiver = null;
-    private static Patient currentPatient = null;
+    private static final int MAX_AVAILABILITY_RANGE_DAYS = 366;
+    private static final int DEFAULT_APPOINTMENT_PAGE = 50;
+
+    // every command that has a service call goes through it, see SchedulerService
+    private static final SchedulerService SERVICE = new SchedulerService();
+
+    // A handler for one operation, looked up by name in COMMANDS
+    private interface Command {
+        void run(Session session, CommandLine tokens);
+    }
+
+    private static final Map<String, Command> COMMANDS = new HashMap<>();
+
+    static {
+        COMMANDS.put("create_patient", Scheduler::createPatient);
+        COMMANDS.put("create_caregiver", Scheduler::createCaregiver);
+        COMMANDS.put("login_patient", Scheduler::loginPatient);
+        COMMANDS.put("login_caregiver", Scheduler::loginCaregiver);
+        COMMANDS.put("search_caregiver_schedule", Scheduler::searchCaregiverSchedule);
+        COMMANDS.put("search_range", Scheduler::searchRange);
+        COMMANDS.put("reserve", Scheduler::reserve);
+        COMMANDS.put("leave_waitlist", Scheduler::leaveWaitlist);
+        COMMANDS.put("upload_availability", Scheduler::uploadAvailability);
+        COMMANDS.put("cancel", Scheduler::cancel);
+        COMMANDS.put("add_doses", Scheduler::addDoses);
+        COMMANDS.put("import_doses", Scheduler::importDoses);
+        COMMANDS.put("show_appointments", Scheduler::showAppointments);
+        COMMANDS.put("resume", Scheduler::resume);
+        COMMANDS.put("logout", Scheduler::logout);
+        COMMANDS.put("stats", (session, tokens) -> session.getOut().println(statsReport()));
+    }
 
     public static void main(String[] args) {
-        // printing greetings text
-        System.out.println();
-        System.out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
-        System.out.println("*** Please enter one of the following commands ***");
-        System.out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
-        System.out.println("> create_caregiver <username> <password>");
-        System.out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
-        System.out.println("> login_caregiver <username> <password>");
-        System.out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
-        System.out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
-        System.out.println("> upload_availability <date>");
-        System.out.println("> cancel <appointment_id>");  // TODO: implement cancel (extra credit)
-        System.out.println("> add_doses <vaccine> <number>");
-        System.out.println("> show_appointments");  // TODO: implement show_appointments (Part 2)
-        System.out.println("> logout");  // TODO: implement logout (Part 2)
-        System.out.println("> quit");
-        System.out.println();
+        // StatsDumpSeconds > 0 prints the stats report to stderr periodically
+        Metrics.startPeriodicDump(Util.getEnvInt("StatsDumpSeconds", 0), Scheduler::statsReport);
+
+        // bring the schema up to date before serving anything, see MigrationRunner
+        try {
+            int applied = Storage.get().migrate();
+            if (applied > 0) {
+                System.out.println("Applied " + applied + " schema migrations");
+            }
+        } catch (IOException | SQLException | RuntimeException e) {
+            System.out.println("Could not apply schema migrations: " + e.getMessage());
+        }
+
+        // WriteBehind=1 confirms reservations once journaled and writes them in the background, see WriteBehind
+        // the journal replays into the database, so the in-memory backend always reserves directly
+        if (WriteBehind.isEnabled() && Storage.get().usesDatabase()) {
+            try {
+                WriteBehind.start();
+            } catch (IOException | RuntimeException e) {
+                System.out.println("Could not open the reservation journal, reserving directly: " + e.getMessage());
+            }
+        }
+
+        // scheduler --server [port] serves many clients over TCP, see SchedulerServer
+        if (args.length >= 1 && args[0].equals("--server")) {
+            int port = args.length >= 2 ? Integer.parseInt(args[1]) : SchedulerServer.DEFAULT_PORT;
+            AvailabilityIndex.start();
+            try {
+                new SchedulerServer(port).run();
+            } catch (IOException e) {
+                System.out.println("Could not serve on port " + port + ": " + e.getMessage());
+            }
+            return;
+        }
+
+        // scheduler --script <file> or --batch (commands on stdin) runs non-interactively, see BatchRunner
+        if (args.length >= 1 && (args[0].equals("--script") || args[0].equals("--batch"))) {
+            // a long script sees other processes' writes like the console and the server do
+            AvailabilityIndex.start();
+            try (BufferedReader in = args[0].equals("--script") && args.length >= 2
+                    ? Files.newBufferedReader(Paths.get(args[1]))
+                    : new BufferedReader(new InputStreamReader(System.in))) {
+                new BatchRunner(System.out).run(in);
+            } catch (IOException e) {
+                System.out.println("Could not read script: " + e.getMessage());
+            }
+            return;
+        }
+
+        printGreeting(System.out);
+
+        // serve searches from memory, see AvailabilityIndex
+        AvailabilityIndex.start();
+
+        // the console is a single session
+        Session session = new Session(System.out);
 
         // read input from user
         BufferedReader r = new BufferedReader(new InputStreamReader(System.in));
@@ -55,515 +138,625 @@ public class Scheduler {
             } catch (IOException e) {
                 System.out.println("Please try again!");
             }
-            // split the user input by spaces
-            String[] tokens = response.split(" ");
-            // check if input exists
-            if (tokens.length == 0) {
-                System.out.println("Please try again!");
-                continue;
+            // end of input behaves like quit
+            if (response == null) {
+                response = "quit";
             }
-            // determine which operation to perform
-            String operation = tokens[0];
-            if (operation.equals("create_patient")) {
-                createPatient(tokens);
-            } else if (operation.equals("create_caregiver")) {
-                createCaregiver(tokens);
-            } else if (operation.equals("login_patient")) {
-                loginPatient(tokens);
-            } else if (operation.equals("login_caregiver")) {
-                loginCaregiver(tokens);
-            } else if (operation.equals("search_caregiver_schedule")) {
-                searchCaregiverSchedule(tokens);
-            } else if (operation.equals("reserve")) {
-                reserve(tokens);
-            } else if (operation.equals("upload_availability")) {
-                uploadAvailability(tokens);
-            } else if (operation.equals("cancel")) {
-                cancel(tokens);
-            } else if (operation.equals("add_doses")) {
-                addDoses(tokens);
-            } else if (operation.equals("show_appointments")) {
-                showAppointments(tokens);
-            } else if (operation.equals("logout")) {
-                logout(tokens);
-            } else if (operation.equals("quit")) {
-                System.out.println("Bye!");
+            if (!execute(session, response)) {
+                // let waitlist matches triggered by this session's commands finish, then their writes
+                Waitlist.awaitIdle();
+                WriteBehind.awaitWritten();
                 return;
+            }
+        }
+    }
+
+    static void printGreeting(PrintStream out) {
+        // printing greetings text
+        out.println();
+        out.println("Welcome to the COVID-19 Vaccine Reservation Scheduling Application!");
+        out.println("*** Please enter one of the following commands ***");
+        out.println("> create_patient <username> <password>");  //TODO: implement create_patient (Part 1)
+        out.println("> create_caregiver <username> <password>");
+        out.println("> login_patient <username> <password>");  // TODO: implement login_patient (Part 1)
+        out.println("> login_caregiver <username> <password>");
+        out.println("> search_caregiver_schedule <date>");  // TODO: implement search_caregiver_schedule (Part 2)
+        out.println("> search_range <start> <end> [vaccine]");
+        out.println("> reserve <date> <vaccine>");  // TODO: implement reserve (Part 2)
+        out.println("> leave_waitlist <date> <vaccine>");
+        out.println("> upload_availability <date> | <start> <end> [weekdays, e.g. MON,WED,FRI]");
+        out.println("> cancel <appointment_id>");
+        out.println("> add_doses <vaccine> <number>");
+        out.println("> import_doses <csv file with name,doses lines>");
+        out.println("> show_appointments [--from <date>] [--limit N] [--after <appointment_id>]");
+        out.println("> resume <session token>");
+        out.println("> logout");  // TODO: implement logout (Part 2)
+        out.println("> stats");
+        out.println("> quit");
+        out.println();
+    }
+
+    // Runs one input line for the session, returns false once the session should end
+    static boolean execute(Session session, String response) {
+        PrintStream out = session.getOut();
+        // split the user input by spaces, reusing the session's token buffer
+        CommandLine tokens = session.getCommandLine().parse(response);
+        // check if input exists
+        if (tokens.size() == 0) {
+            out.println("Please try again!");
+            return true;
+        }
+        String operation = tokens.get(0);
+        CommandEvent event = new CommandEvent();
+        event.begin();
+        long start = System.nanoTime();
+        try {
+            // determine which operation to perform
+            if (operation.equals("quit")) {
+                out.println("Bye!");
+                return false;
+            }
+            Command command = COMMANDS.get(operation);
+            if (command == null) {
+                out.println("Invalid operation name!");
             } else {
-                System.out.println("Invalid operation name!");
+                command.run(session, tokens);
             }
+            return true;
+        } finally {
+            // unknown commands share one histogram so typos cannot grow the metrics without bound
+            String command = COMMANDS.containsKey(operation) || operation.equals("quit") ? operation : "invalid";
+            Metrics.recordCommand(command, System.nanoTime() - start);
+            event.command = command;
+            event.failed = Metrics.takeCommandFailed();
+            event.commit();
+        }
+    }
+
+    // Everything the stats command and the periodic dump show
+    static String statsReport() {
+        String report = Metrics.report();
+        if (!Storage.get().usesDatabase()) {
+            return report;
         }
+        return report + System.lineSeparator() + "pool " + ConnectionManager.getPool();
     }
 
-    private static void createPatient(String[] tokens) {
-        String password = tokens[2];
-        if (!isStrongPassword(password)) {
-            System.out.println("Password is not strong. Please follow the password guidelines.");
+    private static void createPatient(Session session, CommandLine tokens) {
+        if (tokens.size() != 3) {
+            session.getOut().println("Failed to create user.");
             return;
         }
+        SchedulerService.CreateAccountRequest request =
+                new SchedulerService.CreateAccountRequest(tokens.get(1), tokens.get(2));
+        printCreated(session, request.username(), SERVICE.createPatient(request));
+    }
 
-        if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+    private static void createCaregiver(Session session, CommandLine tokens) {
+        // create_caregiver <username> <password>
+        if (tokens.size() != 3) {
+            session.getOut().println("Failed to create user.");
             return;
         }
-        String username = tokens[1];
-        if (usernameExistsPatient(username)) {
-            System.out.println("Username taken, try again!");
+        SchedulerService.CreateAccountRequest request =
+                new SchedulerService.CreateAccountRequest(tokens.get(1), tokens.get(2));
+        printCreated(session, request.username(), SERVICE.createCaregiver(request));
+    }
+
+    private static void printCreated(Session session, String username,
+                                     CompletableFuture<SchedulerService.CreateAccountResponse> call) {
+        SchedulerService.CreateAccountResponse response = await(session, call, "Failed to create user.");
+        if (response == null) {
             return;
         }
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
-        try {
-            Patient patient = new Patient.PatientBuilder(username, salt, hash).build();
-            patient.saveToDB();
-            System.out.println("Created user " + username);
-        } catch (SQLException e) {
-            System.out.println("Failed to create user.");
-            e.printStackTrace();
+        switch (response.outcome()) {
+            case CREATED:
+                session.getOut().println("Created user " + username);
+                break;
+            case WEAK_PASSWORD:
+                session.getOut().println("Password is not strong. Please follow the password guidelines.");
+                break;
+            case USERNAME_TAKEN:
+                session.getOut().println("Username taken, try again!");
+                break;
         }
     }
 
-
-
-    private static boolean usernameExistsPatient(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Patients WHERE Username = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            return resultSet.isBeforeFirst();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
-        }
-        return true;
+    private static void loginPatient(Session session, CommandLine tokens) {
+        login(session, tokens, AccountRepository.Kind.PATIENT);
     }
 
+    private static void loginCaregiver(Session session, CommandLine tokens) {
+        // login_caregiver <username> <password>
+        login(session, tokens, AccountRepository.Kind.CAREGIVER);
+    }
 
-    private static void createCaregiver(String[] tokens) {
-        // create_caregiver <username> <password>
-        // check 1: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        String password = tokens[2];
-        if (!isStrongPassword(password)) {
-            System.out.println("Password is not strong. Please follow the password guidelines.");
+    private static void login(Session session, CommandLine tokens, AccountRepository.Kind kind) {
+        // someone already logged in needs to log out first
+        if (session.isLoggedIn()) {
+            session.getOut().println("User already logged in.");
             return;
         }
-
-        if (tokens.length != 3) {
-            System.out.println("Failed to create user.");
+        if (tokens.size() != 3) {
+            session.getOut().println("Login failed.");
             return;
         }
-        String username = tokens[1];
-        // check 2: check if the username has been taken already
-        if (usernameExistsCaregiver(username)) {
-            System.out.println("Username taken, try again!");
+        String username = tokens.get(1);
+        SchedulerService.LoginResponse response = await(session,
+                SERVICE.login(new SchedulerService.LoginRequest(kind, username, tokens.get(2))), "Login failed.");
+        if (response == null) {
             return;
         }
-        byte[] salt = Util.generateSalt();
-        byte[] hash = Util.generateHash(password, salt);
-        // create the caregiver
-        try {
-            Caregiver caregiver = new Caregiver.CaregiverBuilder(username, salt, hash).build(); 
-            // save to caregiver information to our database
-            caregiver.saveToDB();
-            System.out.println("Created user " + username);
-        } catch (SQLException e) {
-            System.out.println("Failed to create user.");
-            e.printStackTrace();
+        if (!response.isLoggedIn()) {
+            session.getOut().println("Login failed.");
+            return;
         }
-    }
-
-    private static boolean usernameExistsCaregiver(String username) {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String selectUsername = "SELECT * FROM Caregivers WHERE Username = ?";
-        try {
-            PreparedStatement statement = con.prepareStatement(selectUsername);
-            statement.setString(1, username);
-            ResultSet resultSet = statement.executeQuery();
-            // returns false if the cursor is not before the first record or if there are no rows in the ResultSet.
-            return resultSet.isBeforeFirst();
-        } catch (SQLException e) {
-            System.out.println("Error occurred when checking username");
-            e.printStackTrace();
-        } finally {
-            cm.closeConnection();
+        start(session, response);
+        if (response.token() != null) {
+            session.getOut().println("Session token: " + response.token());
         }
-        return true;
     }
 
-    private static void loginPatient(String[] tokens) {
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+    private static void resume(Session session, CommandLine tokens) {
+        // resume <token>, logs in again with the token printed at login
+        if (session.isLoggedIn()) {
+            session.getOut().println("User already logged in.");
             return;
         }
-
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
+        if (tokens.size() != 2) {
+            session.getOut().println("Resume failed.");
             return;
         }
-        String username = tokens[1];
-        String password = tokens[2];
-
-        Patient patient = null;
-        try {
-            patient = new Patient.PatientGetter(username, password).get();
-        } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+        SchedulerService.LoginResponse response = await(session,
+                SERVICE.resume(new SchedulerService.ResumeRequest(tokens.get(1))), "Resume failed.");
+        if (response == null) {
+            return;
         }
+        if (!response.isLoggedIn()) {
+            session.getOut().println("Resume failed.");
+            return;
+        }
+        start(session, response);
+    }
 
-        if (patient == null) {
-            System.out.println("Login failed.");
+    private static void start(Session session, SchedulerService.LoginResponse response) {
+        if (response.patient() != null) {
+            session.setCurrentPatient(response.patient());
+            session.getOut().println("Logged in as: " + response.patient().getUsername());
         } else {
-            System.out.println("Logged in as: " + username);
-            currentPatient = patient;
+            session.setCurrentCaregiver(response.caregiver());
+            session.getOut().println("Logged in as: " + response.caregiver().getUsername());
         }
+        session.setToken(response.token());
     }
 
-    private static void loginCaregiver(String[] tokens) {
-        // login_caregiver <username> <password>
-        // check 1: if someone's already logged-in, they need to log out first
-        if (currentCaregiver != null || currentPatient != null) {
-            System.out.println("User already logged in.");
+    private static void searchCaregiverSchedule(Session session, CommandLine tokens) {
+        if (!session.isLoggedIn()) {
+            session.getOut().println("Please login first");
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Login failed.");
+
+        if (tokens.size() < 2) {
+            session.getOut().println("Please try again");
             return;
         }
-        String username = tokens[1];
-        String password = tokens[2];
 
-        Caregiver caregiver = null;
-        try {
-            caregiver = new Caregiver.CaregiverGetter(username, password).get();
-        } catch (SQLException e) {
-            System.out.println("Login failed.");
-            e.printStackTrace();
+        Date date = Util.parseDate(tokens.get(1));
+        if (date == null) {
+            session.getOut().println("Please try again");
+            return;
         }
-        // check if the login was successful
-        if (caregiver == null) {
-            System.out.println("Login failed.");
-        } else {
-            System.out.println("Logged in as: " + username);
-            currentCaregiver = caregiver;
+
+        SchedulerService.SearchResponse response = await(session,
+                SERVICE.search(new SchedulerService.SearchRequest(date)), "Please try again");
+        if (response == null) {
+            return;
+        }
+        for (String caregiver : response.caregivers()) {
+            session.getOut().println(caregiver);
+        }
+        for (Map.Entry<String, Integer> vaccine : response.doses().entrySet()) {
+            session.getOut().println(vaccine.getKey() + " " + vaccine.getValue());
         }
     }
 
-    private static void searchCaregiverSchedule(String[] tokens) {
-        if (currentPatient == null && currentCaregiver == null) {
-            System.out.println("Please login first");
+    private static void searchRange(Session session, CommandLine tokens) {
+        // search_range <start> <end> [vaccine]
+        if (!session.isLoggedIn()) {
+            session.getOut().println("Please login first");
             return;
         }
-
-        if (tokens.length < 2) {
-            System.out.println("Please try again");
+        if (tokens.size() != 3 && tokens.size() != 4) {
+            session.getOut().println("Please try again");
+            return;
+        }
+        Date start = Util.parseDate(tokens.get(1));
+        Date end = Util.parseDate(tokens.get(2));
+        String vaccineName = tokens.size() == 4 ? tokens.get(3) : null;
+        if (start == null || end == null || end.before(start)
+                || ChronoUnit.DAYS.between(start.toLocalDate(), end.toLocalDate()) >= MAX_AVAILABILITY_RANGE_DAYS) {
+            session.getOut().println("Please enter a range of at most " + MAX_AVAILABILITY_RANGE_DAYS + " days!");
             return;
         }
-
-        String dateStr = tokens[1];
 
         try {
-            Date date = Date.valueOf(dateStr);
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getAvailableCaregivers = "SELECT Username FROM Availabilities " +
-                    "WHERE Time = ? " +
-                    "ORDER BY Username";
-
-            try (PreparedStatement caregiversStatement = con.prepareStatement(getAvailableCaregivers)) {
-                caregiversStatement.setDate(1, date);
-                ResultSet caregiversResult = caregiversStatement.executeQuery();
-
-                while (caregiversResult.next()) {
-                    System.out.println(caregiversResult.getString("Username"));
-                }
+            SortedMap<Date, Integer> counts = AvailabilityIndex.countCaregivers(start, end);
+            Integer doses = null;
+            if (counts == null) {
+                counts = new TreeMap<>();
+                doses = Storage.get().availability().count(start, end, vaccineName, counts);
+            } else if (vaccineName != null) {
+                doses = DoseCache.snapshot().get(vaccineName);
             }
 
-            String getAvailableVaccines = "SELECT Name, Doses FROM Vaccines ORDER BY Name";
-
-            try (PreparedStatement vaccinesStatement = con.prepareStatement(getAvailableVaccines)) {
-                ResultSet vaccinesResult = vaccinesStatement.executeQuery();
-
-                while (vaccinesResult.next()) {
-                    System.out.println(vaccinesResult.getString("Name") + " " + vaccinesResult.getInt("Doses"));
+            StringBuilder summary = new StringBuilder();
+            String newLine = System.lineSeparator();
+            for (LocalDate d = start.toLocalDate(); !d.isAfter(end.toLocalDate()); d = d.plusDays(1)) {
+                int caregivers = counts.getOrDefault(Date.valueOf(d), 0);
+                summary.append(d).append(' ').append(caregivers).append(" caregivers");
+                if (vaccineName != null && caregivers > 0) {
+                    summary.append(doses != null && doses > 0 ? ", doses available" : ", no doses");
                 }
+                summary.append(newLine);
             }
-
-            cm.closeConnection();
-        } catch (IllegalArgumentException | SQLException e) {
-            System.out.println("Please try again");
+            if (vaccineName != null && doses == null) {
+                summary.append("Vaccine not found").append(newLine);
+            }
+            session.getOut().print(summary);
+        } catch (SQLException e) {
+            Metrics.recordError(e);
+            session.getOut().println("Please try again");
         }
     }
 
-    private static void reserve(String[] tokens) {
-        if (currentPatient == null && currentCaregiver == null) {
-            System.out.println("Please login first");
+    private static void reserve(Session session, CommandLine tokens) {
+        if (!session.isLoggedIn()) {
+            session.getOut().println("Please login first");
             return;
         }
 
-        if (currentPatient == null) {
-            System.out.println("Please login as a patient");
+        if (session.getCurrentPatient() == null) {
+            session.getOut().println("Please login as a patient");
             return;
         }
 
-        if (tokens.length != 3) {
-            System.out.println("Please try again");
+        if (tokens.size() != 3) {
+            session.getOut().println("Please try again");
             return;
         }
 
-        String dateStr = tokens[1];
-        String vaccineName = tokens[2];
+        Date date = Util.parseDate(tokens.get(1));
+        String vaccineName = tokens.get(2);
+        if (date == null) {
+            session.getOut().println("Please try again");
+            return;
+        }
 
-        try {
-            Date date = Date.valueOf(dateStr);
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getAvailableCaregiver =  "SELECT TOP 1 Username FROM Availabilities " +
-                    "WHERE Time = ? " +
-                    "ORDER BY Username";
-
-            String getVaccineDoses = "SELECT Doses FROM Vaccines WHERE Name = ?";
-            String reserveAppointment = "INSERT INTO Appointment (PName, CName, VName, Time, ApptID) VALUES (?, ?, ?, ?, ?)";
-            String decreaseVaccineDoses = "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ?";
-            String deleteAvailability = "DELETE FROM Availabilities WHERE Username = ? AND Time = ?";
-
-            try (PreparedStatement availableCaregiverStatement = con.prepareStatement(getAvailableCaregiver);
-                 PreparedStatement vaccineDosesStatement = con.prepareStatement(getVaccineDoses);
-                 PreparedStatement reserveStatement = con.prepareStatement(reserveAppointment);
-                 PreparedStatement decreaseDosesStatement = con.prepareStatement(decreaseVaccineDoses);
-                 PreparedStatement deleteAvailabilityStatement = con.prepareStatement(deleteAvailability)) {
-
-                availableCaregiverStatement.setDate(1, date);
-                ResultSet caregiverResult = availableCaregiverStatement.executeQuery();
-
-                if (caregiverResult.next()) {
-                    String caregiverUsername = caregiverResult.getString("Username");
-
-                    vaccineDosesStatement.setString(1, vaccineName);
-                    ResultSet vaccineResult = vaccineDosesStatement.executeQuery();
-
-                    if (vaccineResult.next()) {
-                        int availableDoses = vaccineResult.getInt("Doses");
-
-                        if (availableDoses > 0) {
-                            reserveStatement.setString(1, currentPatient.getUsername());
-                            reserveStatement.setString(2, caregiverUsername);
-                            reserveStatement.setString(3, vaccineName);
-                            reserveStatement.setDate(4, date);
-                            reserveStatement.setInt(5, getLatestAppointmentID(con) + 1);
-                            reserveStatement.executeUpdate();
-
-                            decreaseDosesStatement.setString(1, vaccineName);
-                            decreaseDosesStatement.executeUpdate();
-
-                            deleteAvailabilityStatement.setString(1, caregiverUsername);
-                            deleteAvailabilityStatement.setDate(2, date);
-                            deleteAvailabilityStatement.executeUpdate();
-
-                            System.out.println("Appointment ID " + getLatestAppointmentID(con) +
-                                    ", Caregiver username " + caregiverUsername);
-                        } else {
-                            System.out.println("Not enough available doses");
-                        }
-                    } else {
-                        System.out.println("Vaccine not found");
-                    }
-                } else {
-                    System.out.println("No caregiver is available");
-                }
-            }
+        String patientName = session.getCurrentPatient().getUsername();
+        SchedulerService.ReserveResponse response = await(session, SERVICE.reserve(
+                new SchedulerService.ReserveRequest(patientName, date, vaccineName)), "Please try again");
+        if (response == null) {
+            return;
+        }
+        switch (response.outcome()) {
+            case RESERVED:
+                session.getOut().println("Appointment ID " + response.appointment().getApptId() +
+                        ", Caregiver username " + response.appointment().getCaregiverName());
+                break;
+            case NO_CAREGIVER:
+                session.getOut().println("No caregiver is available");
+                break;
+            case VACCINE_NOT_FOUND:
+                session.getOut().println("Vaccine not found");
+                break;
+            case NOT_ENOUGH_DOSES:
+                session.getOut().println("Not enough available doses");
+                break;
+        }
+        // a reservation that found no caregiver or no doses is booked when supply is added
+        if (response.waitlisting() == SchedulerService.Waitlisting.ADDED) {
+            session.getOut().println("Added to the waitlist for " + date + " " + vaccineName +
+                    ", the appointment is booked as soon as one frees up");
+        } else if (response.waitlisting() == SchedulerService.Waitlisting.ALREADY_WAITING) {
+            session.getOut().println("Already on the waitlist for " + date + " " + vaccineName);
+        }
+    }
 
-            cm.closeConnection();
-        } catch (IllegalArgumentException e) {
-            System.out.println("Please try again");
-        } catch (SQLException e) {
-            System.out.println("Please try again");
-            e.printStackTrace();
+    private static void leaveWaitlist(Session session, CommandLine tokens) {
+        // leave_waitlist <date> <vaccine>
+        if (session.getCurrentPatient() == null) {
+            session.getOut().println("Please login as a patient");
+            return;
+        }
+        Date date = tokens.size() == 3 ? Util.parseDate(tokens.get(1)) : null;
+        if (date == null) {
+            session.getOut().println("Please try again");
+            return;
+        }
+
+        String vaccineName = tokens.get(2);
+        SchedulerService.LeaveWaitlistResponse response = await(session, SERVICE.leaveWaitlist(
+                new SchedulerService.LeaveWaitlistRequest(session.getCurrentPatient().getUsername(), date, vaccineName)),
+                "Please try again");
+        if (response == null) {
+            return;
+        }
+        if (response.left()) {
+            session.getOut().println("Left the waitlist for " + date + " " + vaccineName);
+        } else {
+            session.getOut().println("Not on the waitlist for " + date + " " + vaccineName);
         }
     }
 
-    private static void uploadAvailability(String[] tokens) {
+    private static void uploadAvailability(Session session, CommandLine tokens) {
         // upload_availability <date>
         // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+        if (session.getCurrentCaregiver() == null) {
+            session.getOut().println("Please login as a caregiver first!");
+            return;
+        }
+        // upload_availability <start> <end> [weekdays] publishes a whole range at once
+        if (tokens.size() == 3 || tokens.size() == 4) {
+            uploadAvailabilityRange(session, tokens);
             return;
         }
         // check 2: the length for tokens need to be exactly 2 to include all information (with the operation name)
-        if (tokens.length != 2) {
-            System.out.println("Please try again!");
+        if (tokens.size() != 2) {
+            session.getOut().println("Please try again!");
+            return;
+        }
+        Date d = Util.parseDate(tokens.get(1));
+        if (d == null) {
+            session.getOut().println("Please enter a valid date!");
             return;
         }
-        String date = tokens[1];
         try {
-            Date d = Date.valueOf(date);
-            currentCaregiver.uploadAvailability(d);
-            System.out.println("Availability uploaded!");
-        } catch (IllegalArgumentException e) {
-            System.out.println("Please enter a valid date!");
+            session.getCurrentCaregiver().uploadAvailability(d);
+            session.getOut().println("Availability uploaded!");
         } catch (SQLException e) {
-            System.out.println("Error occurred when uploading availability");
+            Metrics.recordError(e);
+            session.getOut().println("Error occurred when uploading availability");
             e.printStackTrace();
         }
     }
 
-    private static void cancel(String[] tokens) {
-        // TODO: Extra credit
-    }
-
-    private static void addDoses(String[] tokens) {
-        // add_doses <vaccine> <number>
-        // check 1: check if the current logged-in user is a caregiver
-        if (currentCaregiver == null) {
-            System.out.println("Please login as a caregiver first!");
+    private static void uploadAvailabilityRange(Session session, CommandLine tokens) {
+        Date startDate = Util.parseDate(tokens.get(1));
+        Date endDate = Util.parseDate(tokens.get(2));
+        Set<DayOfWeek> weekdays = tokens.size() == 4 ? parseWeekdays(tokens.get(3)) : EnumSet.allOf(DayOfWeek.class);
+        if (startDate == null || endDate == null || weekdays == null) {
+            session.getOut().println("Please enter a valid date range!");
             return;
         }
-        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
-        if (tokens.length != 3) {
-            System.out.println("Please try again!");
+        LocalDate start = startDate.toLocalDate();
+        LocalDate end = endDate.toLocalDate();
+        if (end.isBefore(start) || ChronoUnit.DAYS.between(start, end) >= MAX_AVAILABILITY_RANGE_DAYS) {
+            session.getOut().println("Please enter a range of at most " + MAX_AVAILABILITY_RANGE_DAYS + " days!");
             return;
         }
-        String vaccineName = tokens[1];
-        int doses = Integer.parseInt(tokens[2]);
-        Vaccine vaccine = null;
+        List<Date> dates = new ArrayList<>();
+        for (LocalDate d = start; !d.isAfter(end); d = d.plusDays(1)) {
+            if (weekdays.contains(d.getDayOfWeek())) {
+                dates.add(Date.valueOf(d));
+            }
+        }
+
         try {
-            vaccine = new Vaccine.VaccineGetter(vaccineName).get();
+            int inserted = session.getCurrentCaregiver().uploadAvailabilities(dates);
+            session.getOut().println("Availability uploaded! (" + inserted + " inserted, " +
+                    (dates.size() - inserted) + " skipped)");
         } catch (SQLException e) {
-            System.out.println("Error occurred when adding doses");
+            Metrics.recordError(e);
+            session.getOut().println("Error occurred when uploading availability");
             e.printStackTrace();
         }
-        // check 3: if getter returns null, it means that we need to create the vaccine and insert it into the Vaccines
-        //          table
-        if (vaccine == null) {
-            try {
-                vaccine = new Vaccine.VaccineBuilder(vaccineName, doses).build();
-                vaccine.saveToDB();
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+    }
+
+    // Parses a comma separated list of weekdays such as MON,WED,FRI, returns null if one is unknown
+    private static Set<DayOfWeek> parseWeekdays(String list) {
+        Set<DayOfWeek> weekdays = EnumSet.noneOf(DayOfWeek.class);
+        for (String day : list.split(",")) {
+            String prefix = day.trim().toUpperCase();
+            DayOfWeek match = null;
+            for (DayOfWeek d : DayOfWeek.values()) {
+                if (prefix.length() >= 2 && d.name().startsWith(prefix)) {
+                    match = d;
+                }
             }
-        } else {
-            // if the vaccine is not null, meaning that the vaccine already exists in our table
-            try {
-                vaccine.increaseAvailableDoses(doses);
-            } catch (SQLException e) {
-                System.out.println("Error occurred when adding doses");
-                e.printStackTrace();
+            if (match == null) {
+                return null;
             }
+            weekdays.add(match);
         }
-        System.out.println("Doses updated!");
+        return weekdays;
     }
 
-    private static void showAppointments(String[] tokens) {
-        // T.ODO: Part 2
-
-        if (currentPatient == null && currentCaregiver == null) {
-            System.out.println("Please login first");
+    private static void cancel(Session session, CommandLine tokens) {
+        // cancel <appointment_id>
+        if (!session.isLoggedIn()) {
+            session.getOut().println("Please login first");
+            return;
+        }
+        long apptId = tokens.size() == 2 ? Util.parsePositiveLong(tokens.get(1)) : -1;
+        if (apptId <= 0) {
+            session.getOut().println("Please try again");
             return;
         }
 
-        if (tokens.length != 1) {
-            System.out.println("Please try again");
+        boolean patient = session.getCurrentPatient() != null;
+        String username = patient ? session.getCurrentPatient().getUsername() : session.getCurrentCaregiver().getUsername();
+        SchedulerService.CancelResponse response = await(session,
+                SERVICE.cancel(new SchedulerService.CancelRequest(username, patient, apptId)), "Please try again");
+        if (response == null) {
             return;
         }
+        if (response.appointment() == null) {
+            session.getOut().println("Appointment not found");
+        } else {
+            session.getOut().println("Appointment " + apptId + " cancelled");
+        }
+    }
 
+    private static void addDoses(Session session, CommandLine tokens) {
+        // add_doses <vaccine> <number>
+        // check 1: check if the current logged-in user is a caregiver
+        if (session.getCurrentCaregiver() == null) {
+            session.getOut().println("Please login as a caregiver first!");
+            return;
+        }
+        // check 2: the length for tokens need to be exactly 3 to include all information (with the operation name)
+        if (tokens.size() != 3) {
+            session.getOut().println("Please try again!");
+            return;
+        }
+        String vaccineName = tokens.get(1);
+        int doses = Util.parsePositiveInt(tokens.get(2));
+        if (doses < 0) {
+            session.getOut().println("Please try again!");
+            return;
+        }
+        // one upsert creates the vaccine or adds to it, so two first adds of a vaccine cannot race
         try {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getAppointmentsQuery;
-
-            if (currentPatient != null) {
-                // For patients
-                getAppointmentsQuery = "SELECT ApptID, VName AS Vaccine, Time, CName AS Caregiver FROM Appointment " +
-                        "WHERE PName = ? ORDER BY ApptID";
-            } else {
-                // For caregivers
-                getAppointmentsQuery = "SELECT ApptID, VName AS Vaccine, Time, PName AS Patient FROM Appointment " +
-                        "WHERE CName = ? ORDER BY ApptID";
-            }
-
-            try (PreparedStatement getAppointmentsStatement = con.prepareStatement(getAppointmentsQuery)) {
-
-                String currentUserUsername = (currentPatient != null) ? currentPatient.getUsername() : currentCaregiver.getUsername();
-
-                getAppointmentsStatement.setString(1, currentUserUsername);
-
-                ResultSet appointmentsResult = getAppointmentsStatement.executeQuery();
-
-                while (appointmentsResult.next()) {
-                    System.out.println(appointmentsResult.getInt("ApptID") + " " +
-                            appointmentsResult.getString("Vaccine") + " " +
-                            appointmentsResult.getDate("Time") + " " +
-                            appointmentsResult.getString((currentPatient != null) ? "Caregiver" : "Patient"));
-                }
-            }
-
-            cm.closeConnection();
+            new Vaccine.DoseImporter().importAll(Collections.singletonMap(vaccineName, doses));
         } catch (SQLException e) {
-            System.out.println("Please try again");
+            Metrics.recordError(e);
+            session.getOut().println("Error occurred when adding doses");
+            e.printStackTrace();
+            return;
         }
+        session.getOut().println("Doses updated!");
     }
 
-    private static int getLatestAppointmentID(Connection con) throws SQLException {
-        String getLatestIDQuery = "SELECT MAX(ApptID) as LatestID FROM Appointment";
-
-        try (PreparedStatement getLatestIDStatement = con.prepareStatement(getLatestIDQuery);
-             ResultSet resultSet = getLatestIDStatement.executeQuery()) {
-
-            if (resultSet.next()) {
-                return resultSet.getInt("LatestID");
-            }
+    private static void importDoses(Session session, CommandLine tokens) {
+        // import_doses <file>
+        if (session.getCurrentCaregiver() == null) {
+            session.getOut().println("Please login as a caregiver first!");
+            return;
         }
-
-        throw new SQLException("Error getting the latest appointment ID");
+        if (tokens.size() != 2) {
+            session.getOut().println("Please try again!");
+            return;
+        }
+        long start = System.nanoTime();
+        Vaccine.DoseImporter importer = new Vaccine.DoseImporter();
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(tokens.get(1)))) {
+            importer.importFrom(reader);
+        } catch (IOException e) {
+            Metrics.recordError(e);
+            session.getOut().println("Could not read " + tokens.get(1));
+            return;
+        } catch (SQLException e) {
+            Metrics.recordError(e);
+            session.getOut().println("Error occurred when importing doses");
+            e.printStackTrace();
+            return;
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        session.getOut().printf("Doses updated! %d lines imported, %d rejected in %.2fs (%.0f lines/s)%n",
+                importer.getImported(), importer.getRejected(), seconds,
+                importer.getImported() / Math.max(seconds, 1e-9));
     }
 
-    private static void logout(String[] tokens) {
-        if (tokens.length != 1) {
-            System.out.println("Please try again");
+    private static void showAppointments(Session session, CommandLine tokens) {
+        // show_appointments [--from <date>] [--limit N] [--after <apptId>]
+        // with --after, the page starts after the appointment on the --from date with that ID
+        if (!session.isLoggedIn()) {
+            session.getOut().println("Please login first");
             return;
         }
 
-        if (currentPatient == null && currentCaregiver == null) {
-            System.out.println("Please login first");
-        } else {
-            System.out.println("Successfully logged out");
-            currentPatient = null;
-            currentCaregiver = null;
+        // upcoming appointments only unless asked otherwise, so the page does not grow with history
+        Date from = Date.valueOf(LocalDate.now());
+        int limit = DEFAULT_APPOINTMENT_PAGE;
+        long after = -1;
+        for (int i = 1; i < tokens.size(); i += 2) {
+            String option = tokens.get(i);
+            String value = i + 1 < tokens.size() ? tokens.get(i + 1) : "";
+            boolean valid;
+            if (option.equals("--from")) {
+                from = Util.parseDate(value);
+                valid = from != null;
+            } else if (option.equals("--limit")) {
+                limit = Util.parsePositiveInt(value);
+                valid = limit > 0 && limit <= SchedulerService.MAX_APPOINTMENT_PAGE;
+            } else if (option.equals("--after")) {
+                after = Util.parsePositiveLong(value);
+                valid = after > 0;
+            } else {
+                valid = false;
+            }
+            if (!valid) {
+                session.getOut().println("Please try again");
+                return;
+            }
         }
-    }
 
-    private static boolean isStrongPassword(String password) {
-        if (password.length()<8) {
-            return false;
+        boolean patient = session.getCurrentPatient() != null;
+        String username = patient ? session.getCurrentPatient().getUsername() : session.getCurrentCaregiver().getUsername();
+        // pages are keyed on (Time, ApptID), so a page costs the same however deep into the list it
+        // starts; --from and --after are the key of the last row seen, which need not exist any more
+        SchedulerService.ShowAppointmentsRequest request =
+                new SchedulerService.ShowAppointmentsRequest(username, patient, from, after, limit);
+        SchedulerService.ShowAppointmentsResponse response =
+                await(session, SERVICE.showAppointments(request), "Please try again");
+        if (response == null) {
+            return;
         }
 
-        if (!(password.matches(".*[a-z].*") && password.matches(".*[A-Z].*"))) {
-            return false;
-        }
+        // the page is written out in one go rather than a println per row
+        StringBuilder page = new StringBuilder();
+        String newLine = System.lineSeparator();
+        long last = -1;
+        Date lastTime = from;
+        for (AppointmentRepository.Appointment appointment : response.appointments()) {
+            last = appointment.getApptId();
+            lastTime = appointment.getTime();
+            page.append(last).append(' ')
+                    .append(appointment.getVaccineName()).append(' ')
+                    .append(appointment.getTime()).append(' ')
+                    .append(patient ? appointment.getCaregiverName() : appointment.getPatientName())
+                    .append(newLine);
+        }
+        if (response.more()) {
+            page.append("More: show_appointments --from ").append(lastTime).append(" --limit ").append(limit)
+                    .append(" --after ").append(last).append(newLine);
+        }
+        session.getOut().print(page);
+    }
 
-        if (!password.matches(".*[a-zA-Z].*\\d.*")) {
-            return false;
+    private static void logout(Session session, CommandLine tokens) {
+        if (tokens.size() != 1) {
+            session.getOut().println("Please try again");
+            return;
         }
 
-        Pattern specialCharPattern = Pattern.compile("[!@#?]");
-        Matcher specialCharMatcher = specialCharPattern.matcher(password);
-        if (!specialCharMatcher.find()) {
-            return false;
+        if (!session.isLoggedIn()) {
+            session.getOut().println("Please login first");
+        } else {
+            // the token stops working everywhere, not just on this connection
+            if (session.getToken() != null) {
+                SERVICE.logout(new SchedulerService.LogoutRequest(session.getToken()));
+            }
+            session.getOut().println("Successfully logged out");
+            session.logout();
         }
+    }
 
-        return true;
+    // Waits for a service call on the command's thread, so a failure is counted against the command.
+    // Prints the failure message and returns null if the call failed or ran past its deadline.
+    private static <T> T await(Session session, CompletableFuture<T> call, String failure) {
+        try {
+            return call.get();
+        } catch (ExecutionException e) {
+            Metrics.recordError(e.getCause());
+            session.getOut().println(failure);
+            if (e.getCause() instanceof SQLException) {
+                e.getCause().printStackTrace();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            session.getOut().println(failure);
+        }
+        return null;
     }
 }
@@ -0,0 +1,140 @@
+package scheduler;
+
+import scheduler.db.WriteBehind;
+import scheduler.model.Waitlist;
+import scheduler.util.HashingService;
+import scheduler.util.Util;
+
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+// Serves the scheduler's line protocol to many TCP clients at once, one thread and one Session per client
+public class SchedulerServer {
+
+    public static final int DEFAULT_PORT = 8765;
+
+    private static final long SHUTDOWN_GRACE_SECONDS = Util.getEnvInt("ShutdownGraceSeconds", 10);
+
+    private final int port;
+    private final ExecutorService clients = Util.newThreadPerTaskExecutor("scheduler-client");
+    private final Set<Socket> sockets = ConcurrentHashMap.newKeySet();
+    private volatile ServerSocket serverSocket;
+    private volatile boolean shuttingDown = false;
+
+    public SchedulerServer(int port) {
+        this.port = port;
+    }
+
+    // Accepts clients until the JVM is asked to stop
+    public void run() throws IOException {
+        serverSocket = new ServerSocket(port);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "scheduler-shutdown"));
+        System.out.println("Scheduler listening on port " + serverSocket.getLocalPort());
+
+        while (!shuttingDown) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (SocketException e) {
+                // the server socket was closed by shutdown()
+                break;
+            }
+            sockets.add(socket);
+            try {
+                clients.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                // accepted just as shutdown() began
+                sockets.remove(socket);
+                close(socket);
+            }
+        }
+    }
+
+    // Stops accepting, lets running commands finish, then disconnects the remaining clients
+    public void shutdown() {
+        if (shuttingDown) {
+            return;
+        }
+        shuttingDown = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            // nothing left to accept from anyway
+        }
+        clients.shutdown();
+        // idle clients are blocked reading their next line, closing their input lets them finish
+        for (Socket socket : sockets) {
+            try {
+                socket.shutdownInput();
+            } catch (IOException e) {
+                // already disconnected
+            }
+        }
+        try {
+            if (!clients.awaitTermination(SHUTDOWN_GRACE_SECONDS, TimeUnit.SECONDS)) {
+                clients.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // a client still running after the grace period gets "Please try again" for a login or sign-up
+        HashingService.getInstance().shutdown();
+        Waitlist.awaitIdle();
+        WriteBehind.awaitWritten();
+        for (Socket socket : sockets) {
+            close(socket);
+        }
+    }
+
+    private void serve(Socket socket) {
+        try (BufferedReader in = new BufferedReader(
+                     new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+             PrintStream out = new PrintStream(
+                     new BufferedOutputStream(socket.getOutputStream()), false, "UTF-8")) {
+            Session session = new Session(out);
+            Scheduler.printGreeting(out);
+            while (true) {
+                out.print("> ");
+                out.flush();
+                String line = in.readLine();
+                if (line == null || shuttingDown) {
+                    break;
+                }
+                if (!Scheduler.execute(session, line)) {
+                    break;
+                }
+            }
+            if (shuttingDown) {
+                out.println("Server is shutting down, bye!");
+            }
+            out.flush();
+        } catch (IOException e) {
+            // the client went away, its session goes with it
+        } finally {
+            sockets.remove(socket);
+            close(socket);
+        }
+    }
+
+    private static void close(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // already closed
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package scheduler;
+
+import scheduler.db.AccountRepository;
+import scheduler.db.AppointmentRepository;
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.ConnectionManager;
+import scheduler.db.DoseCache;
+import scheduler.db.Storage;
+import scheduler.db.UsernameFilter;
+import scheduler.model.Appointment;
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.model.Waitlist;
+import scheduler.util.Util;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.List;
+import java.util.SortedMap;
+import java.util.SortedSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+// The scheduler's operations for code rather than a terminal: typed requests in, futures of typed
+// responses out, so a front end can run a search, a reservation and a listing at the same time.
+// Every call runs on a thread of its own (virtual when the runtime has them, see
+// Util.newThreadPerTaskExecutor) and fails with a TimeoutException once its deadline passes,
+// ServiceDeadlineMs (default 30s) unless the call gives one; the call is then interrupted, but what it
+// already committed stays committed. A caller with a pinned connection runs its calls itself, see
+// submit(). Storage errors fail the future with the SQLException.
+// The service keeps no sessions: callers remember who logged in and pass the username along. A login
+// also returns a token that resumes it later without the password, see SessionTokens.
+public class SchedulerService implements AutoCloseable {
+
+    public static final int MAX_APPOINTMENT_PAGE = 1000;
+
+    private static final Duration DEFAULT_DEADLINE = Duration.ofMillis(Util.getEnvInt("ServiceDeadlineMs", 30_000));
+
+    private final ExecutorService calls = Util.newThreadPerTaskExecutor("scheduler-service");
+    private final SessionTokens tokens = SessionTokens.fromEnvironment();
+    private final Duration defaultDeadline;
+
+    public SchedulerService() {
+        this(DEFAULT_DEADLINE);
+    }
+
+    public SchedulerService(Duration defaultDeadline) {
+        this.defaultDeadline = defaultDeadline;
+    }
+
+    public enum CreateOutcome {
+        CREATED,
+        WEAK_PASSWORD,
+        USERNAME_TAKEN
+    }
+
+    public enum Waitlisting {
+        NOT_WAITLISTED,
+        ADDED,
+        ALREADY_WAITING
+    }
+
+    public record CreateAccountRequest(String username, String password) {
+    }
+
+    public record CreateAccountResponse(CreateOutcome outcome) {
+    }
+
+    public record LoginRequest(AccountRepository.Kind kind, String username, String password) {
+    }
+
+    // The patient or the caregiver, by the request's kind, or neither if the credentials are wrong.
+    // token resumes the login later, it is null if tokens are off.
+    public record LoginResponse(Patient patient, Caregiver caregiver, String token) {
+        public boolean isLoggedIn() {
+            return patient != null || caregiver != null;
+        }
+    }
+
+    public record ResumeRequest(String token) {
+    }
+
+    public record LogoutRequest(String token) {
+    }
+
+    public record SearchRequest(Date date) {
+    }
+
+    // Caregivers available on the date, and the doses of every vaccine
+    public record SearchResponse(SortedSet<String> caregivers, SortedMap<String, Integer> doses) {
+    }
+
+    public record ReserveRequest(String patientName, Date date, String vaccineName) {
+    }
+
+    // appointment is set if the outcome is RESERVED; a patient who got no caregiver or no dose is waitlisted
+    public record ReserveResponse(AppointmentRepository.Outcome outcome, AppointmentRepository.Appointment appointment,
+                                  Waitlisting waitlisting) {
+    }
+
+    public record LeaveWaitlistRequest(String patientName, Date date, String vaccineName) {
+    }
+
+    // left is false if the patient was not waiting for the date and vaccine
+    public record LeaveWaitlistResponse(boolean left) {
+    }
+
+    // username is the patient's, or the caregiver's if patient is false; from and after are the time and
+    // ID of the last appointment of the previous page, or after is negative for the first page
+    public record ShowAppointmentsRequest(String username, boolean patient, Date from, long after, int limit) {
+    }
+
+    // more is set when the page is full, the next page starts after its last appointment
+    public record ShowAppointmentsResponse(List<AppointmentRepository.Appointment> appointments, boolean more) {
+    }
+
+    public record CancelRequest(String username, boolean patient, long apptId) {
+    }
+
+    // appointment is the cancelled one, or null if the user has no upcoming appointment with that ID
+    public record CancelResponse(AppointmentRepository.Appointment appointment) {
+    }
+
+    public CompletableFuture<CreateAccountResponse> createPatient(CreateAccountRequest request) {
+        return createPatient(request, defaultDeadline);
+    }
+
+    public CompletableFuture<CreateAccountResponse> createPatient(CreateAccountRequest request, Duration deadline) {
+        return submit(() -> createAccount(AccountRepository.Kind.PATIENT, request), deadline);
+    }
+
+    public CompletableFuture<CreateAccountResponse> createCaregiver(CreateAccountRequest request) {
+        return createCaregiver(request, defaultDeadline);
+    }
+
+    public CompletableFuture<CreateAccountResponse> createCaregiver(CreateAccountRequest request, Duration deadline) {
+        return submit(() -> createAccount(AccountRepository.Kind.CAREGIVER, request), deadline);
+    }
+
+    public CompletableFuture<LoginResponse> login(LoginRequest request) {
+        return login(request, defaultDeadline);
+    }
+
+    public CompletableFuture<LoginResponse> login(LoginRequest request, Duration deadline) {
+        return submit(() -> {
+            Patient patient = null;
+            Caregiver caregiver = null;
+            if (request.kind() == AccountRepository.Kind.PATIENT) {
+                patient = new Patient.PatientGetter(request.username(), request.password()).get();
+            } else {
+                caregiver = new Caregiver.CaregiverGetter(request.username(), request.password()).get();
+            }
+            if (patient == null && caregiver == null) {
+                return new LoginResponse(null, null, null);
+            }
+            return tokens.issue(patient, caregiver);
+        }, deadline);
+    }
+
+    // Logs in again with the token of an earlier login, failing like a wrong password if it expired or
+    // was revoked. Completes right away: the token is checked in memory, without storage or hashing.
+    public CompletableFuture<LoginResponse> resume(ResumeRequest request) {
+        LoginResponse session = tokens.resume(request.token());
+        return CompletableFuture.completedFuture(session != null ? session : new LoginResponse(null, null, null));
+    }
+
+    // Revokes the token, completes right away
+    public CompletableFuture<Void> logout(LogoutRequest request) {
+        tokens.revoke(request.token());
+        return CompletableFuture.completedFuture(null);
+    }
+
+    public CompletableFuture<SearchResponse> search(SearchRequest request) {
+        return search(request, defaultDeadline);
+    }
+
+    public CompletableFuture<SearchResponse> search(SearchRequest request, Duration deadline) {
+        return submit(() -> {
+            SortedSet<String> caregivers = AvailabilityIndex.getCaregivers(request.date());
+            if (caregivers == null) {
+                caregivers = Storage.get().availability().caregivers(request.date());
+            }
+            // dose counts come from the in-process cache, which only reads storage when cold
+            return new SearchResponse(caregivers, DoseCache.snapshot());
+        }, deadline);
+    }
+
+    public CompletableFuture<ReserveResponse> reserve(ReserveRequest request) {
+        return reserve(request, defaultDeadline);
+    }
+
+    public CompletableFuture<ReserveResponse> reserve(ReserveRequest request, Duration deadline) {
+        return submit(() -> {
+            Appointment.AppointmentReserver reserver = new Appointment.AppointmentReserver(request.patientName(),
+                    request.date(), request.vaccineName());
+            AppointmentRepository.Appointment appointment = reserver.reserve();
+            Waitlisting waitlisting = Waitlisting.NOT_WAITLISTED;
+            // booked as soon as a caregiver or doses are added
+            if (reserver.getOutcome() == AppointmentRepository.Outcome.NO_CAREGIVER
+                    || reserver.getOutcome() == AppointmentRepository.Outcome.NOT_ENOUGH_DOSES) {
+                waitlisting = Waitlist.add(request.patientName(), request.date(), request.vaccineName())
+                        ? Waitlisting.ADDED : Waitlisting.ALREADY_WAITING;
+            }
+            return new ReserveResponse(reserver.getOutcome(), appointment, waitlisting);
+        }, deadline);
+    }
+
+    public CompletableFuture<LeaveWaitlistResponse> leaveWaitlist(LeaveWaitlistRequest request) {
+        return leaveWaitlist(request, defaultDeadline);
+    }
+
+    public CompletableFuture<LeaveWaitlistResponse> leaveWaitlist(LeaveWaitlistRequest request, Duration deadline) {
+        return submit(() -> new LeaveWaitlistResponse(
+                Waitlist.leave(request.patientName(), request.date(), request.vaccineName())), deadline);
+    }
+
+    public CompletableFuture<ShowAppointmentsResponse> showAppointments(ShowAppointmentsRequest request) {
+        return showAppointments(request, defaultDeadline);
+    }
+
+    public CompletableFuture<ShowAppointmentsResponse> showAppointments(ShowAppointmentsRequest request,
+                                                                        Duration deadline) {
+        if (request.limit() <= 0 || request.limit() > MAX_APPOINTMENT_PAGE) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException(
+                    "Page size must be between 1 and " + MAX_APPOINTMENT_PAGE));
+        }
+        return submit(() -> {
+            List<AppointmentRepository.Appointment> appointments = Storage.get().appointments().find(
+                    request.username(), request.patient(), request.from(), request.after(), request.limit());
+            return new ShowAppointmentsResponse(appointments, appointments.size() == request.limit());
+        }, deadline);
+    }
+
+    public CompletableFuture<CancelResponse> cancel(CancelRequest request) {
+        return cancel(request, defaultDeadline);
+    }
+
+    public CompletableFuture<CancelResponse> cancel(CancelRequest request, Duration deadline) {
+        return submit(() -> new CancelResponse(
+                new Appointment.AppointmentCanceller(request.apptId(), request.username(), request.patient()).cancel()),
+                deadline);
+    }
+
+    // Stops accepting calls, the ones running finish
+    @Override
+    public void close() {
+        calls.shutdown();
+    }
+
+    // Checks every rule in one pass over the characters: at least 8 long, upper and lower case,
+    // a letter followed somewhere later by a digit, and one of !@#?
+    public static boolean isStrongPassword(String password) {
+        if (password.length() < 8) {
+            return false;
+        }
+        boolean lower = false;
+        boolean upper = false;
+        boolean digitAfterLetter = false;
+        boolean special = false;
+        for (int i = 0; i < password.length(); i++) {
+            char c = password.charAt(i);
+            if (c >= 'a' && c <= 'z') {
+                lower = true;
+            } else if (c >= 'A' && c <= 'Z') {
+                upper = true;
+            } else if (c >= '0' && c <= '9') {
+                digitAfterLetter |= lower || upper;
+            } else if (c == '!' || c == '@' || c == '#' || c == '?') {
+                special = true;
+            }
+        }
+        return lower && upper && digitAfterLetter && special;
+    }
+
+    private static CreateAccountResponse createAccount(AccountRepository.Kind kind, CreateAccountRequest request)
+            throws SQLException {
+        if (!isStrongPassword(request.password())) {
+            return new CreateAccountResponse(CreateOutcome.WEAK_PASSWORD);
+        }
+        String username = request.username();
+        UsernameFilter filter = kind == AccountRepository.Kind.PATIENT
+                ? UsernameFilter.PATIENTS : UsernameFilter.CAREGIVERS;
+        // a filter miss means the name is free, only a hit costs a query (and skips the hashing if taken)
+        if (filter.mightBeTaken(username) && Storage.get().accounts().exists(kind, username)) {
+            return new CreateAccountResponse(CreateOutcome.USERNAME_TAKEN);
+        }
+        byte[] salt = Util.generateSalt();
+        byte[] hash = Util.generateHash(request.password(), salt);
+        // the insert itself rejects a name taken since the check
+        boolean created = kind == AccountRepository.Kind.PATIENT
+                ? new Patient.PatientBuilder(username, salt, hash).build().saveToDB()
+                : new Caregiver.CaregiverBuilder(username, salt, hash).build().saveToDB();
+        return new CreateAccountResponse(created ? CreateOutcome.CREATED : CreateOutcome.USERNAME_TAKEN);
+    }
+
+    private <T> CompletableFuture<T> submit(Callable<T> call, Duration deadline) {
+        // a caller holding a pinned connection (script mode, see BatchRunner) runs the call itself, so the
+        // call uses that connection rather than borrowing another on a thread of its own. The deadline is not
+        // enforced then, the statements are still bounded by QueryTimeoutSeconds.
+        if (ConnectionManager.isPinned()) {
+            try {
+                return CompletableFuture.completedFuture(call.call());
+            } catch (Throwable e) {
+                return CompletableFuture.failedFuture(e);
+            }
+        }
+        CompletableFuture<T> result = new CompletableFuture<>();
+        Future<?> running;
+        try {
+            running = calls.submit(() -> {
+                try {
+                    result.complete(call.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // closed, the call fails like any other rather than throwing at the caller
+            return CompletableFuture.failedFuture(new IllegalStateException("Scheduler service is closed", e));
+        }
+        result.orTimeout(deadline.toMillis(), TimeUnit.MILLISECONDS).whenComplete((response, e) -> {
+            if (e instanceof TimeoutException) {
+                running.cancel(true);
+            }
+        });
+        return result;
+    }
+}
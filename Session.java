@@ -0,0 +1,67 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+
+import java.io.PrintStream;
+
+// State of one connected user: the console in interactive mode, or one client in server mode
+public class Session {
+    private final PrintStream out;
+    // token buffer reused for every command of the session
+    private final CommandLine commandLine = new CommandLine();
+
+    // Note: it is always true that at most one of currentCaregiver and currentPatient is not null
+    //       since only one user can be logged-in per session at a time
+    private Caregiver currentCaregiver = null;
+    private Patient currentPatient = null;
+    // resumes the login from another connection, see SessionTokens
+    private String token = null;
+
+    public Session(PrintStream out) {
+        this.out = out;
+    }
+
+    // Getters
+    public PrintStream getOut() {
+        return out;
+    }
+
+    public CommandLine getCommandLine() {
+        return commandLine;
+    }
+
+    public Caregiver getCurrentCaregiver() {
+        return currentCaregiver;
+    }
+
+    public Patient getCurrentPatient() {
+        return currentPatient;
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    public boolean isLoggedIn() {
+        return currentCaregiver != null || currentPatient != null;
+    }
+
+    public void setCurrentCaregiver(Caregiver caregiver) {
+        this.currentCaregiver = caregiver;
+    }
+
+    public void setCurrentPatient(Patient patient) {
+        this.currentPatient = patient;
+    }
+
+    public void setToken(String token) {
+        this.token = token;
+    }
+
+    public void logout() {
+        this.currentCaregiver = null;
+        this.currentPatient = null;
+        this.token = null;
+    }
+}
@@ -0,0 +1,108 @@
+package scheduler;
+
+import scheduler.model.Caregiver;
+import scheduler.model.Patient;
+import scheduler.util.Util;
+
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Opaque tokens handed out at login, so a client that reconnects resumes its session with a lookup
+// in memory instead of a storage read and a PBKDF2 run. A token expires SessionTtlSeconds (default
+// 30 minutes) after it was last used and is dropped early, least recently used first, once more than
+// SessionTokenLimit (default 10,000) are live. Tokens live in this process only, a restart logs
+// everyone out. SessionTtlSeconds=0 turns tokens off.
+public class SessionTokens {
+
+    private static final int TOKEN_BYTES = 32;
+    private static final SecureRandom random = new SecureRandom();
+
+    private final long ttlNanos;
+    private final int maxSize;
+    // in access order, so the least recently used tokens, and with them the expired ones, come first
+    private final LinkedHashMap<String, Entry> tokens = new LinkedHashMap<>(16, 0.75f, true);
+
+    public SessionTokens(long ttlSeconds, int maxSize) {
+        this.ttlNanos = TimeUnit.SECONDS.toNanos(Math.max(ttlSeconds, 0));
+        this.maxSize = maxSize;
+    }
+
+    public static SessionTokens fromEnvironment() {
+        return new SessionTokens(Util.getEnvInt("SessionTtlSeconds", 30 * 60),
+                Util.getEnvInt("SessionTokenLimit", 10_000));
+    }
+
+    public boolean isEnabled() {
+        return ttlNanos > 0 && maxSize > 0;
+    }
+
+    // Logs the user in with a new token, or without one if tokens are off
+    public SchedulerService.LoginResponse issue(Patient patient, Caregiver caregiver) {
+        if (!isEnabled()) {
+            return new SchedulerService.LoginResponse(patient, caregiver, null);
+        }
+        byte[] bytes = new byte[TOKEN_BYTES];
+        random.nextBytes(bytes);
+        String token = Base64.getUrlEncoder().withoutPadding().encodeToString(bytes);
+        SchedulerService.LoginResponse session = new SchedulerService.LoginResponse(patient, caregiver, token);
+        long now = System.nanoTime();
+        synchronized (this) {
+            expire(now);
+            tokens.put(token, new Entry(session, now));
+            if (tokens.size() > maxSize) {
+                Iterator<String> eldest = tokens.keySet().iterator();
+                eldest.next();
+                eldest.remove();
+            }
+        }
+        return session;
+    }
+
+    // The login the token was issued for, its expiry pushed back, or null if the token is unknown,
+    // expired or revoked
+    public SchedulerService.LoginResponse resume(String token) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            expire(now);
+            Entry entry = tokens.get(token);
+            if (entry == null) {
+                return null;
+            }
+            entry.lastUsed = now;
+            return entry.session;
+        }
+    }
+
+    public synchronized boolean revoke(String token) {
+        return tokens.remove(token) != null;
+    }
+
+    public synchronized int size() {
+        return tokens.size();
+    }
+
+    // Drops the expired tokens, which are all at the head as a use moves a token to the tail
+    private void expire(long now) {
+        Iterator<Map.Entry<String, Entry>> it = tokens.entrySet().iterator();
+        while (it.hasNext()) {
+            if (now - it.next().getValue().lastUsed < ttlNanos) {
+                return;
+            }
+            it.remove();
+        }
+    }
+
+    private static class Entry {
+        private final SchedulerService.LoginResponse session;
+        private long lastUsed;
+
+        private Entry(SchedulerService.LoginResponse session, long lastUsed) {
+            this.session = session;
+            this.lastUsed = lastUsed;
+        }
+    }
+}
@@ -0,0 +1,181 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+import scheduler.util.Util;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+// Wraps pooled connections so prepareStatement reuses the statements prepared earlier on the same
+// connection. Closing a statement hands it back instead of closing it; a statement still in use
+// when its SQL is prepared again is not shared, the second caller gets one of its own. The least
+// recently used statements are closed once StatementCacheSize are idle, and all of them are closed
+// with the connection.
+class StatementCache implements InvocationHandler {
+
+    private static final int maxSize = Util.getEnvInt("StatementCacheSize", 100);
+
+    private final Connection target;
+    // idle statements by SQL and cursor type, least recently returned first
+    private final LinkedHashMap<String, PreparedStatement> idle = new LinkedHashMap<>();
+    private boolean closed = false;
+
+    private StatementCache(Connection target) {
+        this.target = target;
+    }
+
+    static Connection wrap(Connection con) {
+        if (maxSize <= 0) {
+            return con;
+        }
+        return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                new Class<?>[]{Connection.class}, new StatementCache(con));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if (name.equals("equals") && args != null && args.length == 1) {
+            return proxy == args[0];
+        }
+        if (name.equals("prepareStatement") && isCacheable(args)) {
+            return prepare(args);
+        }
+        if (name.equals("close")) {
+            closeAll();
+        }
+        try {
+            return method.invoke(target, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    // prepareStatement(sql) and prepareStatement(sql, type, concurrency); the variants asking for
+    // generated keys or holdability are rare enough to prepare every time
+    private static boolean isCacheable(Object[] args) {
+        return args.length == 1 || (args.length == 3 && args[1] instanceof Integer && args[2] instanceof Integer);
+    }
+
+    private PreparedStatement prepare(Object[] args) throws SQLException {
+        String sql = (String) args[0];
+        int type = args.length == 3 ? (Integer) args[1] : ResultSet.TYPE_FORWARD_ONLY;
+        int concurrency = args.length == 3 ? (Integer) args[2] : ResultSet.CONCUR_READ_ONLY;
+        String key = type + " " + concurrency + " " + sql;
+
+        PreparedStatement statement;
+        synchronized (this) {
+            statement = idle.remove(key);
+        }
+        Metrics.recordStatement(statement != null);
+        if (statement == null) {
+            statement = target.prepareStatement(sql, type, concurrency);
+        }
+        return (PreparedStatement) Proxy.newProxyInstance(PreparedStatement.class.getClassLoader(),
+                new Class<?>[]{PreparedStatement.class}, new Cached(key, statement));
+    }
+
+    // Takes a statement back once its user closed it, clearing everything the next user could trip over
+    private void checkIn(String key, PreparedStatement statement) {
+        try {
+            ResultSet resultSet = statement.getResultSet();
+            if (resultSet != null) {
+                resultSet.close();
+            }
+            statement.clearParameters();
+            statement.clearBatch();
+            statement.clearWarnings();
+        } catch (SQLException e) {
+            close(statement);
+            return;
+        }
+
+        List<PreparedStatement> evicted = new ArrayList<>();
+        synchronized (this) {
+            if (closed || idle.containsKey(key)) {
+                evicted.add(statement);
+            } else {
+                idle.put(key, statement);
+                Iterator<PreparedStatement> it = idle.values().iterator();
+                while (idle.size() > maxSize) {
+                    evicted.add(it.next());
+                    it.remove();
+                }
+            }
+        }
+        for (PreparedStatement s : evicted) {
+            close(s);
+        }
+    }
+
+    private void closeAll() {
+        List<PreparedStatement> statements;
+        synchronized (this) {
+            closed = true;
+            statements = new ArrayList<>(idle.values());
+            idle.clear();
+        }
+        for (PreparedStatement statement : statements) {
+            close(statement);
+        }
+    }
+
+    private static void close(PreparedStatement statement) {
+        try {
+            statement.close();
+        } catch (SQLException e) {
+            // the statement is being thrown away anyway
+        }
+    }
+
+    // The statement a caller holds: close() returns it to the cache, and it refuses use after that
+    private class Cached implements InvocationHandler {
+        private final String key;
+        private final PreparedStatement statement;
+        private boolean returned = false;
+
+        private Cached(String key, PreparedStatement statement) {
+            this.key = key;
+            this.statement = statement;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String name = method.getName();
+            if (name.equals("equals") && args != null && args.length == 1) {
+                return proxy == args[0];
+            }
+            if (name.equals("hashCode") && args == null) {
+                return System.identityHashCode(proxy);
+            }
+            if (name.equals("close") && args == null) {
+                if (!returned) {
+                    returned = true;
+                    checkIn(key, statement);
+                }
+                return null;
+            }
+            if (name.equals("isClosed") && args == null) {
+                return returned || statement.isClosed();
+            }
+            if (returned) {
+                throw new SQLException("Statement is closed");
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package scheduler.db;
+
+import java.io.IOException;
+import java.sql.SQLException;
+
+// Where accounts, availability, doses and appointments are kept. Set with the Storage
+// environment variable:
+//   jdbc    (default) the database behind ConnectionManager, see JdbcStorage
+//   memory  concurrent collections in this process, gone when it exits, see MemoryStorage
+public abstract class Storage {
+
+    private static final Storage instance = fromEnvironment();
+
+    // The backend every command uses
+    public static Storage get() {
+        return instance;
+    }
+
+    private static Storage fromEnvironment() {
+        String name = System.getenv("Storage");
+        if (name == null || name.isEmpty() || name.equals("jdbc")) {
+            return new JdbcStorage();
+        } else if (name.equals("memory")) {
+            return new MemoryStorage();
+        }
+        System.out.println("Ignoring invalid Storage: " + name);
+        return new JdbcStorage();
+    }
+
+    public abstract AccountRepository accounts();
+
+    public abstract AvailabilityRepository availability();
+
+    public abstract InventoryRepository inventory();
+
+    public abstract AppointmentRepository appointments();
+
+    // Whether the backend is a database reached through ConnectionManager
+    public abstract boolean usesDatabase();
+
+    // Brings the backend's schema up to date, returns the number of migrations applied
+    public abstract int migrate() throws IOException, SQLException;
+}
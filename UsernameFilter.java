@@ -0,0 +1,93 @@
+package scheduler.db;
+
+import scheduler.util.BloomFilter;
+import scheduler.util.Metrics;
+import scheduler.util.Util;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+
+// Bloom filter of the usernames taken in one account table. A miss means the name is certainly
+// free, so sign-ups skip the existence query; a hit still has to be confirmed against the table.
+// Names created by other processes are not seen, which is safe because the insert itself rejects
+// duplicates. Until the table has been loaded once every name counts as a hit, so sign-ups fall back
+// to the existence query; a failed load is retried after a backoff that doubles up to a few minutes,
+// rather than on every sign-up.
+public class UsernameFilter {
+
+    public static final UsernameFilter PATIENTS = new UsernameFilter(AccountRepository.Kind.PATIENT);
+    public static final UsernameFilter CAREGIVERS = new UsernameFilter(AccountRepository.Kind.CAREGIVER);
+
+    private static final int capacity = Util.getEnvInt("UsernameFilterCapacity", 1_000_000);
+    private static final double FALSE_POSITIVE_RATE = 0.01;
+    private static final long FIRST_RETRY_NANOS = TimeUnit.SECONDS.toNanos(1);
+    private static final long MAX_RETRY_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private final AccountRepository.Kind kind;
+    private volatile BloomFilter filter = null;
+    // after a failed load, no new attempt before retryAt (System.nanoTime); backoff doubles on each failure
+    private volatile boolean failed = false;
+    private volatile long retryAt;
+    private long backoff = FIRST_RETRY_NANOS;
+
+    private UsernameFilter(AccountRepository.Kind kind) {
+        this.kind = kind;
+    }
+
+    public boolean mightBeTaken(String username) {
+        BloomFilter f = filter;
+        if (f == null) {
+            // backing off after a failed load, the caller checks the table itself
+            if (failed && System.nanoTime() - retryAt < 0) {
+                return true;
+            }
+            f = load();
+            if (f == null) {
+                return true;
+            }
+        }
+        return f.mightContain(key(username));
+    }
+
+    // Records a name that is now taken
+    public void add(String username) {
+        BloomFilter f = filter;
+        if (f != null) {
+            f.put(key(username));
+        }
+    }
+
+    // Reads every username of the table once, returns null if the table could not be read or a failed
+    // read is still backing off
+    private synchronized BloomFilter load() {
+        if (filter != null) {
+            return filter;
+        }
+        if (failed && System.nanoTime() - retryAt < 0) {
+            return null;
+        }
+        try {
+            List<String> usernames = Storage.get().accounts().usernames(kind);
+            // leave room to grow, the false positive rate climbs once the filter is over capacity
+            BloomFilter loaded = new BloomFilter(Math.max(capacity, 2L * usernames.size()), FALSE_POSITIVE_RATE);
+            for (String username : usernames) {
+                loaded.put(key(username));
+            }
+            filter = loaded;
+            return loaded;
+        } catch (SQLException | RuntimeException e) {
+            Metrics.recordError(e);
+            failed = true;
+            retryAt = System.nanoTime() + backoff;
+            backoff = Math.min(backoff * 2, MAX_RETRY_NANOS);
+            return null;
+        }
+    }
+
+    // usernames compare case-insensitively under the database's default collation
+    private static String key(String username) {
+        return username.toLowerCase(Locale.ROOT);
+    }
+}
@@ -1,41 +1,115 @@
 package scheduler.util;
 
-import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.PBEKeySpec;
-import java.security.NoSuchAlgorithmException;
-import java.security.SecureRandom;
-import java.security.spec.InvalidKeySpecException;
-import java.security.spec.KeySpec;
+import java.lang.reflect.Method;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.time.Month;
+import java.time.Year;
 import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Util {
 
-    // constants for handling password
-    private static final int HASH_STRENGTH = 10;
-    private static final int KEY_LENGTH = 16;
+    // constants for handling password, also the parameters of hashes stored before they were configurable
+    static final int HASH_STRENGTH = 10;
+    static final int KEY_LENGTH = 16;
 
     public static byte[] generateSalt() {
         // Generate a random cryptographic salt
-        SecureRandom random = new SecureRandom();
-        byte[] salt = new byte[16];
-        random.nextBytes(salt);
-        return salt;
+        return HashingService.getInstance().generateSalt();
     }
 
     public static byte[] generateHash(String password, byte[] salt) {
-        // Specify the hash parameters
-        KeySpec spec = new PBEKeySpec(password.toCharArray(), salt, HASH_STRENGTH, KEY_LENGTH);
+        // Hash with the configured parameters, see HashingService
+        return HashingService.getInstance().hash(password, salt);
+    }
+
+    public static byte[] generateHash(String password, byte[] salt, int iterations, int keyLength) {
+        return HashingService.getInstance().hash(password, salt, iterations, keyLength);
+    }
+
+    // Parameters of a stored hash, falling back to the legacy ones for rows written before they were recorded
+    public static int storedIterations(int iterations) {
+        return iterations > 0 ? iterations : HASH_STRENGTH;
+    }
+
+    public static int storedKeyLength(int keyLength) {
+        return keyLength > 0 ? keyLength : KEY_LENGTH;
+    }
+
+    // Reads an optional integer setting from the environment
+    public static int getEnvInt(String name, int defaultValue) {
+        String value = System.getenv(name);
+        if (value == null || value.isEmpty()) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            System.out.println("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    // Parses yyyy-[m]m-[d]d like Date.valueOf, but returns null for bad input instead of throwing,
+    // and rejects days past the end of the month rather than rolling them over
+    public static Date parseDate(String s) {
+        int firstDash = s.indexOf('-');
+        int secondDash = s.indexOf('-', firstDash + 1);
+        if (firstDash != 4 || secondDash < 0) {
+            return null;
+        }
+        int year = (int) parseDigits(s, 0, firstDash, 4);
+        int month = (int) parseDigits(s, firstDash + 1, secondDash, 2);
+        int day = (int) parseDigits(s, secondDash + 1, s.length(), 2);
+        if (year < 0 || month < 1 || month > 12 || day < 1 || day > Month.of(month).length(Year.isLeap(year))) {
+            return null;
+        }
+        return Date.valueOf(LocalDate.of(year, month, day));
+    }
+
+    // Parse a positive number, return -1 for anything else instead of throwing
+    public static int parsePositiveInt(String s) {
+        int value = (int) parseDigits(s, 0, s.length(), 9);
+        return value > 0 ? value : -1;
+    }
+
+    public static long parsePositiveLong(String s) {
+        long value = parseDigits(s, 0, s.length(), 18);
+        return value > 0 ? value : -1;
+    }
+
+    // Value of the 1 to maxDigits ASCII digits in s[start, end), or -1 if there are none, too many or other characters
+    private static long parseDigits(String s, int start, int end, int maxDigits) {
+        if (end <= start || end - start > maxDigits) {
+            return -1;
+        }
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
 
-        // Generate the hash
-        SecretKeyFactory factory = null;
-        byte[] hash = null;
+    // One virtual thread per task when the runtime has them (Java 21+), otherwise pooled daemon threads
+    public static ExecutorService newThreadPerTaskExecutor(String name) {
         try {
-            factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA1");
-            hash = factory.generateSecret(spec).getEncoded();
-        } catch (NoSuchAlgorithmException | InvalidKeySpecException ex) {
-            throw new IllegalStateException();
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            AtomicInteger count = new AtomicInteger();
+            return Executors.newCachedThreadPool(r -> {
+                Thread t = new Thread(r, name + "-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
         }
-        return hash;
     }
 
     public static byte[] trim(byte[] bytes)
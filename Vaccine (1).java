@@ -1,11 +1,13 @@
 package scheduler.model;
 
-import scheduler.db.ConnectionManager;
+import scheduler.db.DoseCache;
+import scheduler.db.Storage;
 
-import java.sql.Connection;
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
+import java.io.BufferedReader;
+import java.io.IOException;
 import java.sql.SQLException;
+import java.util.Map;
+import java.util.TreeMap;
 
 public class Vaccine {
     private final String vaccineName;
@@ -31,20 +33,8 @@ public class Vaccine {
     }
 
     public void saveToDB() throws SQLException {
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String addDoses = "INSERT INTO vaccines VALUES (?, ?)";
-        try {
-            PreparedStatement statement = con.prepareStatement(addDoses);
-            statement.setString(1, this.vaccineName);
-            statement.setInt(2, this.availableDoses);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
-        }
+        Storage.get().inventory().create(this.vaccineName, this.availableDoses);
+        DoseCache.add(this.vaccineName, this.availableDoses);
     }
 
     // Increment the available doses
@@ -52,44 +42,34 @@ public class Vaccine {
         if (num <= 0) {
             throw new IllegalArgumentException("Argument cannot be negative!");
         }
-        this.availableDoses += num;
-
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+        if (!applyDelta(num)) {
+            throw new SQLException("Vaccine " + this.vaccineName + " not found");
         }
     }
 
     // Decrement the available doses
     public void decreaseAvailableDoses(int num) throws SQLException {
-        if (this.availableDoses - num < 0) {
+        if (num <= 0) {
+            throw new IllegalArgumentException("Argument cannot be negative!");
+        }
+        if (!applyDelta(-num)) {
             throw new IllegalArgumentException("Not enough available doses!");
         }
-        this.availableDoses -= num;
-        ConnectionManager cm = new ConnectionManager();
-        Connection con = cm.createConnection();
-
-        String removeAvailability  = "UPDATE vaccines SET Doses = ? WHERE name = ?;";
-        try {
-            PreparedStatement statement = con.prepareStatement(removeAvailability);
-            statement.setInt(1, this.availableDoses);
-            statement.setString(2, this.vaccineName);
-            statement.executeUpdate();
-        } catch (SQLException e) {
-            throw new SQLException();
-        } finally {
-            cm.closeConnection();
+    }
+
+    // Adds delta to the stored count in one statement, so concurrent writers never overwrite each other.
+    // Returns false, leaving the count untouched, if the vaccine is missing or the count would go negative.
+    private boolean applyDelta(int delta) throws SQLException {
+        Integer doses = Storage.get().inventory().addDoses(this.vaccineName, delta);
+        if (doses == null) {
+            return false;
         }
+        this.availableDoses = doses;
+        DoseCache.add(this.vaccineName, delta);
+        if (delta > 0) {
+            Waitlist.dosesAdded(this.vaccineName);
+        }
+        return true;
     }
 
     @Override
@@ -114,6 +94,81 @@ public class Vaccine {
         }
     }
 
+    // Applies a dose manifest of "name,doses" lines in one transaction. Lines are streamed and summed per
+    // vaccine, so memory use depends on the number of vaccines rather than the size of the manifest.
+    public static class DoseImporter {
+        private int imported;
+        private int rejected;
+        // per-vaccine totals, applied in one go and then to the DoseCache
+        private final Map<String, Integer> deltas = new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+
+        // Getters
+        public int getImported() {
+            return imported;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        public void importFrom(BufferedReader reader) throws IOException, SQLException {
+            boolean firstLine = true;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                boolean header = firstLine;
+                firstLine = false;
+                if (line.trim().isEmpty()) {
+                    continue;
+                }
+                int comma = line.indexOf(',');
+                String name = comma < 0 ? "" : line.substring(0, comma).trim();
+                int doses = comma < 0 ? -1 : parseDoses(line.substring(comma + 1).trim());
+                if (name.isEmpty() || doses <= 0) {
+                    // an optional "name,doses" header is not counted as a bad line
+                    if (!header) {
+                        rejected++;
+                    }
+                    continue;
+                }
+                deltas.merge(name, doses, Integer::sum);
+                imported++;
+            }
+            commit();
+        }
+
+        // Applies already validated dose additions, such as a run of add_doses commands in a script
+        public void importAll(Map<String, Integer> doses) throws SQLException {
+            for (Map.Entry<String, Integer> entry : doses.entrySet()) {
+                deltas.merge(entry.getKey(), entry.getValue(), Integer::sum);
+                imported++;
+            }
+            commit();
+        }
+
+        private void commit() throws SQLException {
+            try {
+                Storage.get().inventory().addAll(deltas);
+            } catch (SQLException e) {
+                imported = 0;
+                throw e;
+            }
+            for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+                DoseCache.add(delta.getKey(), delta.getValue());
+                if (delta.getValue() > 0) {
+                    Waitlist.dosesAdded(delta.getKey());
+                }
+            }
+        }
+
+        private static int parseDoses(String value) {
+            try {
+                return Integer.parseInt(value);
+            } catch (NumberFormatException e) {
+                return -1;
+            }
+        }
+    }
+
     public static class VaccineGetter {
         private final String vaccineName;
         private int availableDoses;
@@ -123,24 +178,12 @@ public class Vaccine {
         }
 
         public Vaccine get() throws SQLException {
-            ConnectionManager cm = new ConnectionManager();
-            Connection con = cm.createConnection();
-
-            String getVaccine = "SELECT Name, Doses FROM Vaccines WHERE Name = ?";
-            try {
-                PreparedStatement statement = con.prepareStatement(getVaccine);
-                statement.setString(1, this.vaccineName);
-                ResultSet resultSet = statement.executeQuery();
-                while (resultSet.next()) {
-                    this.availableDoses = resultSet.getInt("Doses");
-                    return new Vaccine(this);
-                }
+            Integer doses = Storage.get().inventory().doses(this.vaccineName);
+            if (doses == null) {
                 return null;
-            } catch (SQLException e) {
-                throw new SQLException();
-            } finally {
-                cm.closeConnection();
             }
+            this.availableDoses = doses;
+            return new Vaccine(this);
         }
     }
 }
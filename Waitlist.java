@@ -0,0 +1,147 @@
+package scheduler.model;
+
+import scheduler.db.AppointmentRepository;
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.DoseCache;
+import scheduler.db.Storage;
+import scheduler.db.WriteBehind;
+import scheduler.util.Metrics;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Patients waiting for a date and vaccine that had no free caregiver or no doses when they tried to
+// reserve. Every time supply is added (availability uploaded, doses added) a match pass runs on a
+// background thread: it walks the waiting requests the change could serve in the order they were
+// queued, a batch at a time, books each one that can now get a caregiver and a dose, and commits a
+// whole batch of bookings in one transaction. A batch only holds requests whose date and vaccine still
+// have supply, and the next batch starts after the last one, so requests that cannot be served never
+// hold back those queued after them. Changes arriving while a pass runs are folded into the next pass.
+// A patient leaves the list by booking the date and vaccine themselves, or with leave().
+public class Waitlist {
+
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+    private static final Set<Date> changedDates = ConcurrentHashMap.newKeySet();
+    private static final Set<String> changedVaccines = ConcurrentHashMap.newKeySet();
+    private static final AtomicBoolean passScheduled = new AtomicBoolean();
+    private static final ExecutorService matcher = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "waitlist-matcher");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private Waitlist() {
+    }
+
+    // Queues the patient for the date and vaccine, returns false if they are already waiting for it
+    public static boolean add(String patientName, Date time, String vaccineName) throws SQLException {
+        return Storage.get().appointments().addToWaitlist(patientName, time, vaccineName);
+    }
+
+    // Takes the patient off the list for the date and vaccine, returns false if they were not waiting for it
+    public static boolean leave(String patientName, Date time, String vaccineName) throws SQLException {
+        return Storage.get().appointments().leaveWaitlist(patientName, time, vaccineName);
+    }
+
+    // Called after availability for the dates has been committed
+    public static void availabilityAdded(Collection<Date> dates) {
+        changedDates.addAll(dates);
+        schedulePass();
+    }
+
+    // Called after doses of the vaccine have been committed
+    public static void dosesAdded(String vaccineName) {
+        changedVaccines.add(vaccineName);
+        schedulePass();
+    }
+
+    // Waits for the passes already scheduled, so a script or console session can exit without losing them
+    public static void awaitIdle() {
+        try {
+            matcher.submit(() -> { }).get(DRAIN_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // the pass is abandoned, the requests stay queued for the next supply change
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void schedulePass() {
+        if (passScheduled.compareAndSet(false, true)) {
+            matcher.execute(Waitlist::runPass);
+        }
+    }
+
+    private static void runPass() {
+        // cleared before draining, so a change that arrives during the pass schedules another one
+        passScheduled.set(false);
+        List<Date> dates = new ArrayList<>(changedDates);
+        changedDates.removeAll(dates);
+        List<String> vaccines = new ArrayList<>(changedVaccines);
+        changedVaccines.removeAll(vaccines);
+        try {
+            // to the end of the list, whatever each batch booked
+            long last = 0;
+            while (last >= 0) {
+                last = match(dates, vaccines, last);
+            }
+        } catch (SQLException | RuntimeException e) {
+            Metrics.recordError(e);
+        }
+    }
+
+    // Books the oldest batch of requests after WaitID after that the change can serve, returns the WaitID
+    // the next batch starts after, or -1 at the end of the list
+    private static long match(List<Date> dates, List<String> vaccines, long after) throws SQLException {
+        if (WriteBehind.isActive()) {
+            return matchWriteBehind(dates, vaccines, after);
+        }
+        AppointmentRepository.Match match = Storage.get().appointments().matchWaitlist(dates, vaccines, after);
+        for (AppointmentRepository.Appointment appointment : match.getBooked()) {
+            DoseCache.add(appointment.getVaccineName(), -1);
+            AvailabilityIndex.remove(appointment.getTime(), appointment.getCaregiverName());
+        }
+        return match.getLast();
+    }
+
+    // In write-behind mode a request is booked in memory and journaled like any reservation, and its row is
+    // removed when the booking is written, so the pass first waits for earlier bookings to be written
+    private static long matchWriteBehind(List<Date> dates, List<String> vaccines, long after) throws SQLException {
+        if (!WriteBehind.awaitWritten()) {
+            // the requests stay queued for the next supply change
+            return -1;
+        }
+        Set<Date> noCaregiver = new HashSet<>();
+        Set<String> noDoses = new HashSet<>();
+        long last = -1;
+        for (AppointmentRepository.Request request : Storage.get().appointments().waiting(dates, vaccines, after)) {
+            last = request.getWaitId();
+            if (noCaregiver.contains(request.getTime()) || noDoses.contains(request.getVaccineName())) {
+                continue;
+            }
+            Appointment.AppointmentReserver reserver = new Appointment.AppointmentReserver(request.getPatientName(),
+                    request.getTime(), request.getVaccineName());
+            if (reserver.reserveWriteBehind(request.getWaitId()) == null) {
+                if (reserver.getOutcome() == AppointmentRepository.Outcome.NO_CAREGIVER) {
+                    noCaregiver.add(request.getTime());
+                } else {
+                    noDoses.add(request.getVaccineName());
+                }
+            }
+        }
+        return last;
+    }
+}
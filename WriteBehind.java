@@ -0,0 +1,538 @@
+package scheduler.db;
+
+import scheduler.util.Metrics;
+import scheduler.util.Util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Optional write-behind mode for reservations, enabled with WriteBehind=1. A reservation is decided
+// against the availability index and the dose cache, appended to a ReservationJournal
+// (JournalFile, default "reservations.journal", JournalSizeMb, default 64) and confirmed once the
+// journal is synced; a background writer then applies journaled reservations to the Appointment,
+// Vaccines, Availabilities and Waitlist tables in batches of one transaction each. On start the
+// journal is replayed, and every reservation it holds past the last checkpoint is applied again;
+// applying is keyed on ApptID, so a reservation that already reached the database is skipped. Applying
+// also checks the caregiver and the dose against the database, and a reservation that would double-book
+// either is reported on stderr and left out. A batch that keeps failing, WriteAttempts times (default 5),
+// is written one reservation at a time, and a reservation that still fails as many times on its own is
+// appended to the dead-letter file (DeadLetterFile, default "reservations.deadletter") for an operator to
+// look into, discarded from the journal and counted in Metrics, so it no longer holds back the others.
+//
+// Until its batch commits, a reservation is held in memory: its caregiver stays claimed for the date
+// and its dose stays debited from the cache's count, so neither can be handed out twice. Reloading
+// the index or the cache while a batch commits could bring back a caregiver or dose the batch just
+// used, so both reloads take flushLock, which the writer holds from commit until it releases the
+// batch. Reservations become visible to show_appointments and cancel once they are written.
+public class WriteBehind {
+
+    private static final int BATCH_SIZE = 500;
+    private static final long RETRY_MILLIS = 1000;
+    private static final int MAX_ATTEMPTS = Math.max(Util.getEnvInt("WriteAttempts", 5), 1);
+    private static final long DRAIN_TIMEOUT_SECONDS = 30;
+
+    // what applyReservation did with a reservation
+    private static final int ALREADY_WRITTEN = 0;
+    private static final int APPLIED = 1;
+    private static final int CAREGIVER_TAKEN = 2;
+    private static final int NO_DOSE = 3;
+
+    // Skips a reservation that is already in the table, and takes the caregiver and the dose with the same
+    // guards as JdbcStorage.reserve: a reservation whose caregiver is no longer available or whose vaccine
+    // has no dose left is rolled back to the savepoint and reported instead of booked
+    private static final Query applyReservation = Query.update("SET NOCOUNT ON; " +
+            "DECLARE @outcome INT = " + ALREADY_WRITTEN + "; " +
+            "IF NOT EXISTS (SELECT 1 FROM Appointment WHERE ApptID = ?) " +
+            "BEGIN " +
+            "SAVE TRANSACTION journaled; " +
+            "DELETE FROM Availabilities WHERE Username = ? AND Time = ?; " +
+            "IF @@ROWCOUNT = 0 SET @outcome = " + CAREGIVER_TAKEN + "; " +
+            "ELSE BEGIN " +
+            "UPDATE Vaccines SET Doses = Doses - 1 WHERE Name = ? AND Doses > 0; " +
+            "IF @@ROWCOUNT = 0 SET @outcome = " + NO_DOSE + "; " +
+            "END " +
+            "IF @outcome = " + ALREADY_WRITTEN + " BEGIN " +
+            "INSERT INTO Appointment (PName, CName, VName, Time, ApptID) VALUES (?, ?, ?, ?, ?); " +
+            "DELETE FROM Waitlist WHERE PName = ? AND Time = ? AND VName = ?; " +
+            "SET @outcome = " + APPLIED + "; " +
+            "END " +
+            "ELSE ROLLBACK TRANSACTION journaled; " +
+            "END " +
+            "SELECT @outcome");
+
+    private static final boolean enabled = Util.getEnvInt("WriteBehind", 0) > 0;
+
+    static final ReentrantLock flushLock = new ReentrantLock();
+
+    private static final CaregiverAssignment assignment = CaregiverAssignment.getInstance();
+
+    // caregivers and doses taken by reservations not yet written
+    private static final Map<Date, Set<String>> claims = new ConcurrentHashMap<>();
+    private static final Map<String, AtomicInteger> debits =
+            new ConcurrentSkipListMap<>(String.CASE_INSENSITIVE_ORDER);
+    // IDs of the reservations not yet written, which storage does not know about
+    private static final Set<Long> pending = ConcurrentHashMap.newKeySet();
+
+    // in journal order, so a checkpoint never passes a reservation that has not been written
+    private static final BlockingQueue<Reservation> unwritten = new LinkedBlockingQueue<>();
+    private static final Object appendLock = new Object();
+    private static final Object drained = new Object();
+    // guarded by drained
+    private static int outstanding = 0;
+
+    private static volatile ReservationJournal journal = null;
+    private static Path deadLetters;
+
+    private WriteBehind() {
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    // True once the journal is open, from then on every reservation goes through it
+    public static boolean isActive() {
+        return journal != null;
+    }
+
+    // Warms the index, replays the journal and starts the writer
+    public static synchronized void start() throws IOException {
+        if (journal != null) {
+            return;
+        }
+        AvailabilityIndex.start();
+        String file = System.getenv("JournalFile");
+        ReservationJournal opened = new ReservationJournal(
+                Paths.get(file == null || file.isEmpty() ? "reservations.journal" : file),
+                Util.getEnvInt("JournalSizeMb", 64) * 1024 * 1024);
+        String deadLetterFile = System.getenv("DeadLetterFile");
+        deadLetters = Paths.get(deadLetterFile == null || deadLetterFile.isEmpty() ? "reservations.deadletter"
+                : deadLetterFile);
+        List<ReservationJournal.Record> records = opened.replay();
+        for (ReservationJournal.Record record : records) {
+            Reservation reservation = Reservation.decode(record.getPayload(), record.getEnd());
+            reservation.decided.countDown();
+            claims.computeIfAbsent(reservation.time, d -> ConcurrentHashMap.newKeySet()).add(reservation.caregiverName);
+            AvailabilityIndex.remove(reservation.time, reservation.caregiverName);
+            debits.computeIfAbsent(reservation.vaccineName, v -> new AtomicInteger()).incrementAndGet();
+            enqueue(reservation);
+        }
+        if (!records.isEmpty()) {
+            System.out.println("Replaying " + records.size() + " journaled reservations");
+        }
+        journal = opened;
+
+        Thread writer = new Thread(WriteBehind::writeLoop, "write-behind-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    // Takes a caregiver free on the date, or returns null if there is none. The caregiver is picked by the
+    // configured CaregiverAssignment, like storage picks one for a reservation written straight away.
+    public static String claimCaregiver(Date time) throws SQLException {
+        SortedSet<String> available = AvailabilityIndex.getCaregivers(time);
+        if (available == null || !DoseCache.isWarm()) {
+            throw new SQLException("Availability index is stale, cannot reserve in memory");
+        }
+        Set<String> claimed = claims.computeIfAbsent(time, d -> ConcurrentHashMap.newKeySet());
+        NavigableSet<String> caregivers = new TreeSet<>(available);
+        caregivers.removeAll(claimed);
+        String caregiverName;
+        while ((caregiverName = assignment.claim(caregivers, WriteBehind::upcoming)) != null) {
+            if (claimed.add(caregiverName)) {
+                AvailabilityIndex.remove(time, caregiverName);
+                return caregiverName;
+            }
+            // claimed by a concurrent reservation since the copy was made, the strategy picks again
+            assignment.completed(caregiverName, false);
+        }
+        return null;
+    }
+
+    public static void releaseCaregiver(Date time, String caregiverName) {
+        Set<String> claimed = claims.get(time);
+        if (claimed != null && claimed.remove(caregiverName)) {
+            AvailabilityIndex.add(time, caregiverName);
+            assignment.completed(caregiverName, false);
+        }
+    }
+
+    // Upcoming appointments per caregiver in the database, for a strategy that counts them
+    private static Map<String, Integer> upcoming() throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            return CaregiverAssignment.LeastLoaded.count(con);
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    public static boolean hasVaccine(String vaccineName) {
+        return DoseCache.get(vaccineName) != null;
+    }
+
+    // Takes a dose of the vaccine, returns false if none is left
+    public static boolean takeDose(String vaccineName) {
+        AtomicInteger debit = debits.computeIfAbsent(vaccineName, v -> new AtomicInteger());
+        while (true) {
+            Integer doses = DoseCache.get(vaccineName);
+            int taken = debit.get();
+            if (doses == null || doses - taken <= 0) {
+                return false;
+            }
+            if (debit.compareAndSet(taken, taken + 1)) {
+                return true;
+            }
+        }
+    }
+
+    public static void releaseDose(String vaccineName) {
+        debits.get(vaccineName).decrementAndGet();
+    }
+
+    // Doses of the vaccine taken by reservations not yet written
+    static int debited(String vaccineName) {
+        AtomicInteger debit = debits.get(vaccineName);
+        return debit == null ? 0 : debit.get();
+    }
+
+    // Journals a reservation whose caregiver and dose have been taken, returns once it is on disk.
+    // If the journal is full or cannot be synced the caregiver and dose are released and the
+    // reservation is refused. It is queued for the writer right away, to keep the journal's order, but
+    // the writer waits for the sync and skips a refused reservation, whose record is discarded.
+    public static void append(long apptId, String patientName, String caregiverName, String vaccineName, Date time,
+                              long waitId) throws SQLException {
+        Reservation reservation = new Reservation(apptId, waitId, patientName, caregiverName, vaccineName, time);
+        byte[] payload = reservation.encode();
+        synchronized (appendLock) {
+            reservation.end = journal.append(payload);
+            if (reservation.end >= 0) {
+                enqueue(reservation);
+            }
+        }
+        if (reservation.end < 0) {
+            releaseCaregiver(time, caregiverName);
+            releaseDose(vaccineName);
+            throw new SQLException("Reservation journal is full");
+        }
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            journal.discard(reservation.end, payload.length);
+            reservation.dropped = true;
+            pending.remove(apptId);
+            releaseCaregiver(time, caregiverName);
+            releaseDose(vaccineName);
+            throw new SQLException("Could not sync the reservation journal", e);
+        } finally {
+            reservation.decided.countDown();
+        }
+    }
+
+    // Whether the appointment is journaled but not yet written
+    public static boolean isPending(long apptId) {
+        return pending.contains(apptId);
+    }
+
+    // Waits for the reservations journaled so far to be written, returns false if some are still
+    // unwritten after the timeout. Lets the process exit with an empty journal.
+    public static boolean awaitWritten() {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(DRAIN_TIMEOUT_SECONDS);
+        synchronized (drained) {
+            long remaining;
+            while (outstanding > 0 && (remaining = deadline - System.nanoTime()) > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(drained, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            return outstanding == 0;
+        }
+    }
+
+    // Removes the caregivers claimed by unwritten reservations from a freshly loaded index
+    static void hideClaims(ConcurrentNavigableMap<Date, ConcurrentSkipListSet<String>> loaded) {
+        for (Map.Entry<Date, Set<String>> entry : claims.entrySet()) {
+            ConcurrentSkipListSet<String> caregivers = loaded.get(entry.getKey());
+            if (caregivers != null) {
+                caregivers.removeAll(entry.getValue());
+            }
+        }
+    }
+
+    private static void enqueue(Reservation reservation) {
+        synchronized (drained) {
+            outstanding++;
+        }
+        pending.add(reservation.apptId);
+        unwritten.add(reservation);
+    }
+
+    private static void writeLoop() {
+        List<Reservation> batch = new ArrayList<>();
+        while (true) {
+            try {
+                batch.add(unwritten.take());
+                unwritten.drainTo(batch, BATCH_SIZE - 1);
+                // retried a few times, the reservations are already confirmed; then one by one, so a
+                // reservation the database keeps refusing does not hold back the rest
+                Exception failure = attempt(batch);
+                if (failure != null && batch.size() > 1) {
+                    for (Reservation reservation : batch) {
+                        Exception own = attempt(Collections.singletonList(reservation));
+                        if (own != null) {
+                            deadLetter(reservation, own);
+                        }
+                    }
+                } else if (failure != null) {
+                    deadLetter(batch.get(0), failure);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            batch.clear();
+        }
+    }
+
+    // Writes the reservations, up to MAX_ATTEMPTS times; returns the last failure, or null once they are written
+    private static Exception attempt(List<Reservation> reservations) throws InterruptedException {
+        Exception failure = null;
+        for (int i = 0; i < MAX_ATTEMPTS; i++) {
+            if (i > 0) {
+                Thread.sleep(RETRY_MILLIS);
+            }
+            try {
+                write(reservations);
+                return null;
+            } catch (IOException | SQLException | RuntimeException e) {
+                Metrics.recordError(e);
+                failure = e;
+            }
+        }
+        return failure;
+    }
+
+    // Gives up on a reservation that could not be written: it goes to the dead-letter file, its caregiver
+    // and dose are released and its record is discarded, so replay does not bring it back
+    private static void deadLetter(Reservation reservation, Exception failure) {
+        String line = reservation.apptId + "\t" + reservation.patientName + "\t" + reservation.caregiverName + "\t"
+                + reservation.vaccineName + "\t" + reservation.time + "\t" + failure + System.lineSeparator();
+        try {
+            Files.write(deadLetters, line.getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+                    StandardOpenOption.APPEND);
+        } catch (IOException e) {
+            Metrics.recordError(e);
+        }
+        System.err.println("Gave up writing journaled appointment " + reservation.apptId + " for "
+                + reservation.patientName + " on " + reservation.time + ", see " + deadLetters + ": " + failure);
+        Metrics.recordDeadLetter();
+
+        flushLock.lock();
+        try {
+            if (!reservation.dropped) {
+                debits.get(reservation.vaccineName).decrementAndGet();
+                releaseCaregiver(reservation.time, reservation.caregiverName);
+                pending.remove(reservation.apptId);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        journal.discard(reservation.end, reservation.encode().length);
+        try {
+            journal.sync();
+        } catch (IOException e) {
+            // the checkpoint below passes the record anyway
+            Metrics.recordError(e);
+        }
+        journal.checkpoint(reservation.end);
+        synchronized (drained) {
+            outstanding--;
+            drained.notifyAll();
+        }
+    }
+
+    private static void write(List<Reservation> batch) throws IOException, SQLException {
+        // a reservation reaches the database only after it is on disk here, and after its own sync
+        // told the patient it is booked
+        journal.sync();
+        for (Reservation reservation : batch) {
+            reservation.awaitDecided();
+        }
+        flushLock.lock();
+        try {
+            // one round trip per reservation, as each one reports whether it could be applied
+            int[] outcomes = new int[batch.size()];
+            ConnectionManager cm = new ConnectionManager();
+            Connection con = cm.createConnection();
+            try (PreparedStatement statement = applyReservation.prepare(con)) {
+                con.setAutoCommit(false);
+                for (int i = 0; i < batch.size(); i++) {
+                    Reservation reservation = batch.get(i);
+                    if (reservation.dropped) {
+                        continue;
+                    }
+                    statement.setLong(1, reservation.apptId);
+                    statement.setString(2, reservation.caregiverName);
+                    statement.setDate(3, reservation.time);
+                    statement.setString(4, reservation.vaccineName);
+                    statement.setString(5, reservation.patientName);
+                    statement.setString(6, reservation.caregiverName);
+                    statement.setString(7, reservation.vaccineName);
+                    statement.setDate(8, reservation.time);
+                    statement.setLong(9, reservation.apptId);
+                    // the patient leaves the waitlist for the date and vaccine, whether or not the
+                    // reservation came from it
+                    statement.setString(10, reservation.patientName);
+                    statement.setDate(11, reservation.time);
+                    statement.setString(12, reservation.vaccineName);
+                    ResultSet resultSet = statement.executeQuery();
+                    resultSet.next();
+                    outcomes[i] = resultSet.getInt(1);
+                    resultSet.close();
+                }
+                con.commit();
+            } catch (SQLException e) {
+                con.rollback();
+                throw e;
+            } finally {
+                cm.closeConnection();
+            }
+
+            // the cache takes the doses before the debits drop, so a dose is never counted twice
+            for (int i = 0; i < batch.size(); i++) {
+                Reservation reservation = batch.get(i);
+                if (reservation.dropped) {
+                    continue;
+                }
+                if (outcomes[i] == APPLIED) {
+                    DoseCache.add(reservation.vaccineName, -1);
+                } else if (outcomes[i] != ALREADY_WRITTEN) {
+                    reportConflict(reservation, outcomes[i]);
+                }
+                assignment.completed(reservation.caregiverName, outcomes[i] == APPLIED
+                        || outcomes[i] == ALREADY_WRITTEN);
+                debits.get(reservation.vaccineName).decrementAndGet();
+                Set<String> claimed = claims.get(reservation.time);
+                if (claimed != null) {
+                    claimed.remove(reservation.caregiverName);
+                }
+                // the dose ran out behind the cache's back, but the caregiver is still free
+                if (outcomes[i] == NO_DOSE) {
+                    AvailabilityIndex.add(reservation.time, reservation.caregiverName);
+                }
+                pending.remove(reservation.apptId);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+        journal.checkpoint(batch.get(batch.size() - 1).end);
+        synchronized (drained) {
+            outstanding -= batch.size();
+            drained.notifyAll();
+        }
+    }
+
+    // The reservation was confirmed, but another process or a stale index or cache handed out its caregiver or
+    // dose in the meantime. It is left out of the database; its waitlist request, if any, stays queued.
+    private static void reportConflict(Reservation reservation, int outcome) {
+        System.err.println("Could not write journaled appointment " + reservation.apptId + " for "
+                + reservation.patientName + " on " + reservation.time + ": "
+                + (outcome == CAREGIVER_TAKEN ? "caregiver " + reservation.caregiverName + " is no longer available"
+                : "no doses of " + reservation.vaccineName + " left"));
+        Metrics.recordError(new SQLException("Journaled reservation conflicts with the database"));
+    }
+
+    private static class Reservation {
+        private final long apptId;
+        // the waitlist request served, or 0; kept in the record format, the write removes the request by
+        // patient, date and vaccine
+        private final long waitId;
+        private final String patientName;
+        private final String caregiverName;
+        private final String vaccineName;
+        private final Date time;
+        // end offset in the journal
+        private int end;
+        // counted down once append() has confirmed or refused the reservation
+        private final CountDownLatch decided = new CountDownLatch(1);
+        private volatile boolean dropped = false;
+
+        private Reservation(long apptId, long waitId, String patientName, String caregiverName, String vaccineName,
+                            Date time) {
+            this.apptId = apptId;
+            this.waitId = waitId;
+            this.patientName = patientName;
+            this.caregiverName = caregiverName;
+            this.vaccineName = vaccineName;
+            this.time = time;
+        }
+
+        private void awaitDecided() throws IOException {
+            try {
+                decided.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a journal sync", e);
+            }
+        }
+
+        private byte[] encode() {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+            try (DataOutputStream out = new DataOutputStream(bytes)) {
+                out.writeLong(apptId);
+                out.writeLong(waitId);
+                out.writeUTF(patientName);
+                out.writeUTF(caregiverName);
+                out.writeUTF(vaccineName);
+                out.writeLong(time.toLocalDate().toEpochDay());
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return bytes.toByteArray();
+        }
+
+        private static Reservation decode(byte[] payload, int end) throws IOException {
+            try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload))) {
+                Reservation reservation = new Reservation(in.readLong(), in.readLong(), in.readUTF(), in.readUTF(),
+                        in.readUTF(), Date.valueOf(LocalDate.ofEpochDay(in.readLong())));
+                reservation.end = end;
+                return reservation;
+            }
+        }
+    }
+}
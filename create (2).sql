@@ -1,14 +1,23 @@
+-- The current schema, the result of applying every script in migrations/ to the original one. A database
+-- created from this file needs no migration: the scripts check before they change anything, so
+-- scheduler.db.MigrationRunner only records them in the SchemaVersion table. Change the schema with a new
+-- numbered script and apply the same change here.
+
 CREATE TABLE Caregivers (
     Username varchar(255),
     Salt BINARY(16),
-    Hash BINARY(16),
+    Hash VARBINARY(64),
+    Iterations int,
+    KeyLength int,
     PRIMARY KEY (Username)
 );
 
 CREATE TABLE Patients (
     Username varchar(255),
     Salt BINARY(16),
-    Hash BINARY(16),
+    Hash VARBINARY(64),
+    Iterations int,
+    KeyLength int,
     PRIMARY KEY (Username)
 );
 
@@ -18,20 +27,50 @@ CREATE TABLE Availabilities (
     PRIMARY KEY (Time, Username)
 );
 
+CREATE INDEX IX_Availabilities_Username_Time ON Availabilities (Username, Time);
+
 CREATE TABLE Vaccines (
     Name varchar(255),
-    Doses int,
+    Doses int NOT NULL,
     PRIMARY KEY (Name)
 );
 
 CREATE TABLE Appointment (
-    PName varchar(255),
-    CName varchar(255),
-    VName varchar(255),
-    Time date,
-    ApptID INT,
-    PRIMARY KEY (ApptID),
-    FOREIGN KEY (Pname) REFERENCES Patients(Username),
-    FOREIGN KEY (Vname) REFERENCES Vaccines(Name),
-    FOREIGN KEY (CName) REFERENCES Caregivers(Username)
-);
\ No newline at end of file
+    PName varchar(255) NOT NULL,
+    CName varchar(255) NOT NULL,
+    VName varchar(255) NOT NULL,
+    Time date NOT NULL,
+    ApptID bigint NOT NULL,
+    CONSTRAINT PK_Appointment PRIMARY KEY (ApptID),
+    CONSTRAINT FK_Appointment_Patients FOREIGN KEY (PName) REFERENCES Patients(Username),
+    CONSTRAINT FK_Appointment_Caregivers FOREIGN KEY (CName) REFERENCES Caregivers(Username),
+    CONSTRAINT FK_Appointment_Vaccines FOREIGN KEY (VName) REFERENCES Vaccines(Name)
+);
+
+CREATE INDEX IX_Appointment_PName ON Appointment (PName, Time, ApptID) INCLUDE (VName, CName);
+CREATE INDEX IX_Appointment_CName ON Appointment (CName, Time, ApptID) INCLUDE (VName, PName);
+CREATE INDEX IX_Appointment_Time_CName ON Appointment (Time, CName);
+
+CREATE TABLE Waitlist (
+    WaitID bigint IDENTITY NOT NULL,
+    PName varchar(255) NOT NULL,
+    VName varchar(255) NOT NULL,
+    Time date NOT NULL,
+    RequestedAt datetime2 NOT NULL DEFAULT SYSUTCDATETIME(),
+    PRIMARY KEY (WaitID),
+    CONSTRAINT UQ_Waitlist_Request UNIQUE (PName, Time, VName),
+    CONSTRAINT FK_Waitlist_Patients FOREIGN KEY (PName) REFERENCES Patients(Username),
+    CONSTRAINT FK_Waitlist_Vaccines FOREIGN KEY (VName) REFERENCES Vaccines(Name)
+);
+
+CREATE INDEX IX_Waitlist_Time ON Waitlist (Time, WaitID) INCLUDE (PName, VName);
+CREATE INDEX IX_Waitlist_VName ON Waitlist (VName, WaitID) INCLUDE (PName, Time);
+
+-- hi/lo ID blocks, see scheduler.db.IdAllocator
+CREATE TABLE IdBlocks (
+    Name varchar(255) NOT NULL,
+    NextID bigint NOT NULL,
+    PRIMARY KEY (Name)
+);
+
+INSERT INTO IdBlocks (Name, NextID) VALUES ('Appointment', 1);
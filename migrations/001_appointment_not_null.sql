@@ -0,0 +1,28 @@
+-- Every appointment has a patient, caregiver, vaccine and date, and every vaccine a dose count.
+-- Columns referenced by a foreign key cannot be altered, so the unnamed constraints from
+-- create.sql are dropped and re-created under names later migrations can refer to.
+IF COLUMNPROPERTY(OBJECT_ID('Appointment'), 'PName', 'AllowsNull') = 1
+BEGIN
+    DECLARE @drop nvarchar(max) = N'';
+    SELECT @drop = @drop + N'ALTER TABLE Appointment DROP CONSTRAINT ' + QUOTENAME(name) + N';'
+    FROM sys.foreign_keys
+    WHERE parent_object_id = OBJECT_ID('Appointment');
+    EXEC sp_executesql @drop;
+
+    ALTER TABLE Appointment ALTER COLUMN PName varchar(255) NOT NULL;
+    ALTER TABLE Appointment ALTER COLUMN CName varchar(255) NOT NULL;
+    ALTER TABLE Appointment ALTER COLUMN VName varchar(255) NOT NULL;
+    ALTER TABLE Appointment ALTER COLUMN Time date NOT NULL;
+
+    ALTER TABLE Appointment ADD CONSTRAINT FK_Appointment_Patients
+        FOREIGN KEY (PName) REFERENCES Patients(Username);
+    ALTER TABLE Appointment ADD CONSTRAINT FK_Appointment_Caregivers
+        FOREIGN KEY (CName) REFERENCES Caregivers(Username);
+    ALTER TABLE Appointment ADD CONSTRAINT FK_Appointment_Vaccines
+        FOREIGN KEY (VName) REFERENCES Vaccines(Name);
+END
+GO
+
+IF COLUMNPROPERTY(OBJECT_ID('Vaccines'), 'Doses', 'AllowsNull') = 1
+    ALTER TABLE Vaccines ALTER COLUMN Doses int NOT NULL;
+GO
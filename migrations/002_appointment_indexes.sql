@@ -0,0 +1,14 @@
+-- show_appointments for a patient or a caregiver seeks on the name and reads the rows in date
+-- order straight from the index, the included columns save the lookup into the clustered index
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Appointment_PName' AND object_id = OBJECT_ID('Appointment'))
+    CREATE INDEX IX_Appointment_PName ON Appointment (PName, Time, ApptID) INCLUDE (VName, CName);
+GO
+
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Appointment_CName' AND object_id = OBJECT_ID('Appointment'))
+    CREATE INDEX IX_Appointment_CName ON Appointment (CName, Time, ApptID) INCLUDE (VName, PName);
+GO
+
+-- who is booked on a day, for per-date lookups and the double-booking check
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Appointment_Time_CName' AND object_id = OBJECT_ID('Appointment'))
+    CREATE INDEX IX_Appointment_Time_CName ON Appointment (Time, CName);
+GO
@@ -0,0 +1,4 @@
+-- the primary key (Time, Username) serves lookups by date, this one serves a caregiver's own schedule
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Availabilities_Username_Time' AND object_id = OBJECT_ID('Availabilities'))
+    CREATE INDEX IX_Availabilities_Username_Time ON Availabilities (Username, Time);
+GO
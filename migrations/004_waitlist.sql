@@ -0,0 +1,23 @@
+-- Patients waiting for a date and vaccine, matched in WaitID order when supply is added, see
+-- scheduler.model.Waitlist. A patient waits at most once per date and vaccine.
+IF OBJECT_ID('Waitlist') IS NULL
+    CREATE TABLE Waitlist (
+        WaitID bigint IDENTITY NOT NULL,
+        PName varchar(255) NOT NULL,
+        VName varchar(255) NOT NULL,
+        Time date NOT NULL,
+        RequestedAt datetime2 NOT NULL DEFAULT SYSUTCDATETIME(),
+        PRIMARY KEY (WaitID),
+        CONSTRAINT UQ_Waitlist_Request UNIQUE (PName, Time, VName),
+        CONSTRAINT FK_Waitlist_Patients FOREIGN KEY (PName) REFERENCES Patients(Username),
+        CONSTRAINT FK_Waitlist_Vaccines FOREIGN KEY (VName) REFERENCES Vaccines(Name)
+    );
+GO
+
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Waitlist_Time' AND object_id = OBJECT_ID('Waitlist'))
+    CREATE INDEX IX_Waitlist_Time ON Waitlist (Time, WaitID) INCLUDE (PName, VName);
+GO
+
+IF NOT EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Waitlist_VName' AND object_id = OBJECT_ID('Waitlist'))
+    CREATE INDEX IX_Waitlist_VName ON Waitlist (VName, WaitID) INCLUDE (PName, Time);
+GO
@@ -0,0 +1,19 @@
+-- Hashes made with configurable PBKDF2 parameters, see scheduler.util.HashingService: the hash can be up to
+-- 64 bytes and each row records the iteration count and key length it was made with. Rows from before keep
+-- NULL parameters and are checked with the legacy ones until the next login rehashes them.
+IF COL_LENGTH('Patients', 'Iterations') IS NULL
+    ALTER TABLE Patients ADD Iterations int, KeyLength int;
+GO
+
+IF COL_LENGTH('Caregivers', 'Iterations') IS NULL
+    ALTER TABLE Caregivers ADD Iterations int, KeyLength int;
+GO
+
+-- BINARY(16) becomes VARBINARY(64), the 16-byte hashes already stored are kept as they are
+IF COL_LENGTH('Patients', 'Hash') < 64
+    ALTER TABLE Patients ALTER COLUMN Hash VARBINARY(64);
+GO
+
+IF COL_LENGTH('Caregivers', 'Hash') < 64
+    ALTER TABLE Caregivers ALTER COLUMN Hash VARBINARY(64);
+GO
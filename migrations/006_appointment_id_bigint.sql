@@ -0,0 +1,24 @@
+-- Appointment IDs come from IdBlocks and are not gap-free, so they get the range of a bigint. The primary
+-- key and the indexes with ApptID in their key are dropped for the change and re-created, the key under a
+-- name.
+IF EXISTS (SELECT 1 FROM sys.columns
+           WHERE object_id = OBJECT_ID('Appointment') AND name = 'ApptID' AND TYPE_NAME(system_type_id) = 'int')
+BEGIN
+    IF EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Appointment_PName' AND object_id = OBJECT_ID('Appointment'))
+        DROP INDEX IX_Appointment_PName ON Appointment;
+    IF EXISTS (SELECT 1 FROM sys.indexes WHERE name = 'IX_Appointment_CName' AND object_id = OBJECT_ID('Appointment'))
+        DROP INDEX IX_Appointment_CName ON Appointment;
+
+    DECLARE @drop nvarchar(max) = N'';
+    SELECT @drop = @drop + N'ALTER TABLE Appointment DROP CONSTRAINT ' + QUOTENAME(name) + N';'
+    FROM sys.key_constraints
+    WHERE parent_object_id = OBJECT_ID('Appointment') AND type = 'PK';
+    EXEC sp_executesql @drop;
+
+    ALTER TABLE Appointment ALTER COLUMN ApptID bigint NOT NULL;
+    ALTER TABLE Appointment ADD CONSTRAINT PK_Appointment PRIMARY KEY (ApptID);
+
+    CREATE INDEX IX_Appointment_PName ON Appointment (PName, Time, ApptID) INCLUDE (VName, CName);
+    CREATE INDEX IX_Appointment_CName ON Appointment (CName, Time, ApptID) INCLUDE (VName, PName);
+END
+GO
@@ -0,0 +1,14 @@
+-- hi/lo ID blocks, see scheduler.db.IdAllocator
+IF OBJECT_ID('IdBlocks') IS NULL
+    CREATE TABLE IdBlocks (
+        Name varchar(255) NOT NULL,
+        NextID bigint NOT NULL,
+        PRIMARY KEY (Name)
+    );
+GO
+
+-- appointment IDs continue after the highest one handed out so far
+IF NOT EXISTS (SELECT 1 FROM IdBlocks WHERE Name = 'Appointment')
+    INSERT INTO IdBlocks (Name, NextID)
+    SELECT 'Appointment', COALESCE(MAX(ApptID), 0) + 1 FROM Appointment;
+GO
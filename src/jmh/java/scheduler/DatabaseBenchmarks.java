@@ -0,0 +1,202 @@
+package scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.db.ConnectionManager;
+import scheduler.db.IdAllocator;
+import scheduler.db.MigrationRunner;
+import scheduler.util.Util;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+// The hot lookups against the configured database, each timed as a clustered index scan (the plan
+// before the migrations added indexes, forced with INDEX(0)) and as the optimizer plans it with the
+// migration indexes. Not part of the default run, as it needs the connection settings:
+//   gradle jmh -PjmhArgs='DatabaseBenchmarks -p seedCaregivers=10000 -p seedAppointments=1000000'
+// seeds bench_ caregivers and appointments first; compare the timings at a few seed sizes.
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class DatabaseBenchmarks {
+
+    private static final String BENCH_PATIENT = "bench_patient";
+    private static final String BENCH_VACCINE = "bench_vaccine";
+    private static final String BENCH_CAREGIVER = "bench_cg_0";
+    private static final int SEED_DAYS = 365;
+
+    private static final String BY_PATIENT = "SELECT ApptID, VName, Time, CName FROM Appointment %s " +
+            "WHERE PName = ? ORDER BY Time, ApptID";
+    private static final String BY_CAREGIVER = "SELECT ApptID, VName, Time, PName FROM Appointment %s " +
+            "WHERE CName = ? ORDER BY Time, ApptID";
+    private static final String ON_A_DAY = "SELECT CName FROM Appointment %s WHERE Time = ?";
+    private static final String AVAILABILITY_BY_CAREGIVER = "SELECT Time FROM Availabilities %s " +
+            "WHERE Username = ? ORDER BY Time";
+
+    @Param("0")
+    public int seedCaregivers;
+
+    @Param("0")
+    public int seedAppointments;
+
+    private Date firstDay;
+
+    @Setup
+    public void setUp() throws Exception {
+        MigrationRunner.migrate();
+        if (seedCaregivers > 0 || seedAppointments > 0) {
+            seed(seedCaregivers, seedAppointments);
+        }
+        firstDay = Date.valueOf(LocalDate.now().plusDays(1));
+    }
+
+    @Benchmark
+    public int appointmentsByPatientScan() throws SQLException {
+        return query(String.format(BY_PATIENT, "WITH (INDEX(0))"), BENCH_PATIENT);
+    }
+
+    @Benchmark
+    public int appointmentsByPatientIndexed() throws SQLException {
+        return query(String.format(BY_PATIENT, ""), BENCH_PATIENT);
+    }
+
+    @Benchmark
+    public int appointmentsByCaregiverScan() throws SQLException {
+        return query(String.format(BY_CAREGIVER, "WITH (INDEX(0))"), BENCH_CAREGIVER);
+    }
+
+    @Benchmark
+    public int appointmentsByCaregiverIndexed() throws SQLException {
+        return query(String.format(BY_CAREGIVER, ""), BENCH_CAREGIVER);
+    }
+
+    @Benchmark
+    public int appointmentsOnADayScan() throws SQLException {
+        return query(String.format(ON_A_DAY, "WITH (INDEX(0))"), firstDay);
+    }
+
+    @Benchmark
+    public int appointmentsOnADayIndexed() throws SQLException {
+        return query(String.format(ON_A_DAY, ""), firstDay);
+    }
+
+    @Benchmark
+    public int availabilityByCaregiverScan() throws SQLException {
+        return query(String.format(AVAILABILITY_BY_CAREGIVER, "WITH (INDEX(0))"), BENCH_CAREGIVER);
+    }
+
+    @Benchmark
+    public int availabilityByCaregiverIndexed() throws SQLException {
+        return query(String.format(AVAILABILITY_BY_CAREGIVER, ""), BENCH_CAREGIVER);
+    }
+
+    private static int query(String sql, Object parameter) throws SQLException {
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(sql)) {
+            statement.setObject(1, parameter);
+            ResultSet resultSet = statement.executeQuery();
+            int rows = 0;
+            while (resultSet.next()) {
+                rows++;
+            }
+            return rows;
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    // Loads bench_ caregivers with a year of availability, a patient, a vaccine and past appointments
+    private static void seed(int caregivers, int appointments) throws SQLException {
+        byte[] salt = Util.generateSalt();
+        byte[] hash = Util.generateHash("Str0ngPass!", salt);
+        LocalDate first = LocalDate.now().plusDays(1);
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            con.setAutoCommit(false);
+            try (PreparedStatement statement = con.prepareStatement(
+                    "INSERT INTO Patients (Username, Salt, Hash) VALUES (?, ?, ?)")) {
+                statement.setString(1, BENCH_PATIENT);
+                statement.setBytes(2, salt);
+                statement.setBytes(3, hash);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = con.prepareStatement("INSERT INTO Vaccines VALUES (?, ?)")) {
+                statement.setString(1, BENCH_VACCINE);
+                statement.setInt(2, Integer.MAX_VALUE / 2);
+                statement.executeUpdate();
+            }
+            try (PreparedStatement statement = con.prepareStatement(
+                    "INSERT INTO Caregivers (Username, Salt, Hash) VALUES (?, ?, ?)")) {
+                for (int i = 0; i < caregivers; i++) {
+                    statement.setString(1, "bench_cg_" + i);
+                    statement.setBytes(2, salt);
+                    statement.setBytes(3, hash);
+                    addBatch(statement, i);
+                }
+                statement.executeBatch();
+            }
+            // every caregiver works one day in ten, spread over the year
+            try (PreparedStatement statement = con.prepareStatement(
+                    "INSERT INTO Availabilities (Time, Username) VALUES (?, ?)")) {
+                int rows = 0;
+                for (int i = 0; i < caregivers; i++) {
+                    for (int d = i % 10; d < SEED_DAYS; d += 10) {
+                        statement.setDate(1, Date.valueOf(first.plusDays(d)));
+                        statement.setString(2, "bench_cg_" + i);
+                        addBatch(statement, rows++);
+                    }
+                }
+                statement.executeBatch();
+            }
+            con.commit();
+        } finally {
+            cm.closeConnection();
+        }
+
+        IdAllocator ids = new IdAllocator("Appointment", 10_000);
+        cm = new ConnectionManager();
+        con = cm.createConnection();
+        try (PreparedStatement statement = con.prepareStatement(
+                "INSERT INTO Appointment (PName, CName, VName, Time, ApptID) VALUES (?, ?, ?, ?, ?)")) {
+            con.setAutoCommit(false);
+            for (int i = 0; i < appointments; i++) {
+                statement.setString(1, BENCH_PATIENT);
+                statement.setString(2, "bench_cg_" + (i % Math.max(caregivers, 1)));
+                statement.setString(3, BENCH_VACCINE);
+                statement.setDate(4, Date.valueOf(first.minusDays(1 + i % 3650)));
+                statement.setLong(5, ids.nextId());
+                addBatch(statement, i);
+            }
+            statement.executeBatch();
+            con.commit();
+        } finally {
+            cm.closeConnection();
+        }
+    }
+
+    private static void addBatch(PreparedStatement statement, int i) throws SQLException {
+        statement.addBatch();
+        if (i % 1000 == 999) {
+            statement.executeBatch();
+        }
+    }
+}
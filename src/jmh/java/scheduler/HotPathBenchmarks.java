@@ -0,0 +1,98 @@
+package scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import scheduler.util.Util;
+
+import java.sql.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+// The CPU-bound steps of every command: hashing, parsing and validation, each next to the code it
+// replaced where there is one
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(2)
+@State(Scope.Thread)
+public class HotPathBenchmarks {
+
+    private static final String PASSWORD = "Str0ngPass!";
+    private static final String COMMAND = "reserve 2024-05-01 Pfizer";
+
+    private byte[] salt;
+    private CommandLine commandLine;
+
+    @Setup
+    public void setUp() {
+        salt = Util.generateSalt();
+        commandLine = new CommandLine();
+    }
+
+    @Benchmark
+    public byte[] generateSalt() {
+        return Util.generateSalt();
+    }
+
+    @Benchmark
+    public byte[] generateHash() {
+        return Util.generateHash(PASSWORD, salt);
+    }
+
+    // the command parser against the String.split it replaced
+    @Benchmark
+    public String[] tokenizeSplit() {
+        return COMMAND.split(" ");
+    }
+
+    @Benchmark
+    public int tokenizeCommandLine() {
+        return commandLine.parse(COMMAND).size();
+    }
+
+    // the single-pass password check against the regular expressions it replaced
+    @Benchmark
+    public boolean isStrongPasswordRegex() {
+        return PASSWORD.length() >= 8 && PASSWORD.matches(".*[a-z].*") && PASSWORD.matches(".*[A-Z].*")
+                && PASSWORD.matches(".*[a-zA-Z].*\\d.*") && Pattern.compile("[!@#?]").matcher(PASSWORD).find();
+    }
+
+    @Benchmark
+    public boolean isStrongPassword() {
+        return SchedulerService.isStrongPassword(PASSWORD);
+    }
+
+    @Benchmark
+    public Date dateValueOf() {
+        return Date.valueOf("2024-05-01");
+    }
+
+    @Benchmark
+    public Date parseDate() {
+        return Util.parseDate("2024-05-01");
+    }
+
+    @Benchmark
+    public void dateValueOfInvalid(Blackhole blackhole) {
+        try {
+            blackhole.consume(Date.valueOf("2024-5-first"));
+        } catch (IllegalArgumentException e) {
+            blackhole.consume(e);
+        }
+    }
+
+    @Benchmark
+    public Date parseDateInvalid() {
+        return Util.parseDate("2024-5-first");
+    }
+}
@@ -0,0 +1,123 @@
+package scheduler;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import scheduler.db.AppointmentRepository;
+import scheduler.db.AvailabilityIndex;
+import scheduler.db.Storage;
+import scheduler.model.Patient;
+import scheduler.util.Util;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The reserve, search_caregiver_schedule, search_range and show_appointments commands end to end,
+// through Scheduler.execute and SchedulerService, against MemoryStorage seeded at production volume:
+// caregivers available every day of the coming year and appointments booked over it. Needs
+// Storage=memory, which the jmh task sets.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class StorageBenchmarks {
+
+    private static final String BENCH_PATIENT = "bench_patient";
+    private static final String BENCH_VACCINE = "bench_vaccine";
+    private static final int DAYS = 365;
+    private static final int PATIENTS = 100_000;
+
+    @Param("10000")
+    public int caregivers;
+
+    @Param("1000000")
+    public int appointments;
+
+    private Session patient;
+    private String[] reserveCommands;
+    private String[] searchCommands;
+    private String[] rangeCommands;
+    private int day = 0;
+
+    @Setup
+    public void seed() throws Exception {
+        Storage storage = Storage.get();
+        if (storage.usesDatabase()) {
+            throw new IllegalStateException("StorageBenchmarks need Storage=memory");
+        }
+        LocalDate first = LocalDate.now().plusDays(1);
+        List<Date> dates = new ArrayList<>();
+        for (int d = 0; d < DAYS; d++) {
+            dates.add(Date.valueOf(first.plusDays(d)));
+        }
+        for (int i = 0; i < caregivers; i++) {
+            storage.availability().addAll("bench_cg_" + i, dates);
+        }
+        storage.inventory().create(BENCH_VACCINE, Integer.MAX_VALUE / 2);
+
+        // the bench patient is one of many, each with a handful of appointments spread over the year
+        AppointmentRepository appointmentRepository = storage.appointments();
+        for (int i = 0; i < appointments; i++) {
+            String patientName = i % PATIENTS == 0 ? BENCH_PATIENT : "bench_patient_" + i % PATIENTS;
+            appointmentRepository.reserve(patientName, dates.get(i % DAYS), BENCH_VACCINE);
+        }
+        AvailabilityIndex.start();
+
+        patient = new Session(new PrintStream(OutputStream.nullOutputStream()));
+        byte[] salt = Util.generateSalt();
+        patient.setCurrentPatient(new Patient.PatientBuilder(BENCH_PATIENT, salt,
+                Util.generateHash("Str0ngPass!", salt)).build());
+
+        reserveCommands = new String[DAYS];
+        searchCommands = new String[DAYS];
+        rangeCommands = new String[DAYS];
+        for (int d = 0; d < DAYS; d++) {
+            LocalDate date = first.plusDays(d);
+            reserveCommands[d] = "reserve " + date + " " + BENCH_VACCINE;
+            searchCommands[d] = "search_caregiver_schedule " + date;
+            rangeCommands[d] = "search_range " + date + " " + date.plusDays(29) + " " + BENCH_VACCINE;
+        }
+    }
+
+    // each call moves on a day, so reservations spread over the year like the seeded ones
+    private int nextDay() {
+        int d = day;
+        day = d + 1 == DAYS ? 0 : d + 1;
+        return d;
+    }
+
+    @Benchmark
+    public boolean reserve() {
+        return Scheduler.execute(patient, reserveCommands[nextDay()]);
+    }
+
+    @Benchmark
+    public boolean searchCaregiverSchedule() {
+        return Scheduler.execute(patient, searchCommands[nextDay()]);
+    }
+
+    @Benchmark
+    public boolean searchRange() {
+        return Scheduler.execute(patient, rangeCommands[nextDay()]);
+    }
+
+    @Benchmark
+    public boolean showAppointments() {
+        return Scheduler.execute(patient, "show_appointments");
+    }
+}
@@ -0,0 +1,80 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.Set;
+import java.util.TreeSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// The assignment strategies through MemoryStorage, which claims with them like JdbcStorage does
+class CaregiverAssignmentTest {
+
+    private static final String VACCINE = "Pfizer";
+
+    @Test
+    void leastLoadedSpreadsAppointmentsAndForgetsCancelledOnes() throws Exception {
+        MemoryStorage storage = new MemoryStorage(new CaregiverAssignment.LeastLoaded());
+        storage.inventory().create(VACCINE, 100);
+        LocalDate first = LocalDate.now().plusDays(1);
+        for (int d = 0; d < 6; d++) {
+            storage.availability().add("a", Date.valueOf(first.plusDays(d)));
+            storage.availability().add("b", Date.valueOf(first.plusDays(d)));
+            storage.availability().add("c", Date.valueOf(first.plusDays(d)));
+        }
+        AppointmentRepository appointments = storage.appointments();
+
+        // one a day for three days lands on each caregiver once
+        Set<String> booked = new HashSet<>();
+        for (int d = 0; d < 3; d++) {
+            booked.add(appointments.reserve("p" + d, Date.valueOf(first.plusDays(d)), VACCINE)
+                    .getAppointment().getCaregiverName());
+        }
+        assertEquals(Set.of("a", "b", "c"), booked);
+
+        // once b's appointment is cancelled b is the least loaded, whatever the order of the names
+        AppointmentRepository.Appointment ofB = appointments.find("b", false,
+                Date.valueOf(LocalDate.now()), -1, 10).get(0);
+        assertNotNull(appointments.cancel(ofB.getApptId(), "b", false));
+        assertEquals("b", appointments.reserve("p3", Date.valueOf(first.plusDays(3)), VACCINE)
+                .getAppointment().getCaregiverName());
+    }
+
+    @Test
+    void randomClaimsEveryCaregiverOnce() throws Exception {
+        MemoryStorage storage = new MemoryStorage(new CaregiverAssignment.RandomSkipLocked());
+        storage.inventory().create(VACCINE, 100);
+        Date date = Date.valueOf(LocalDate.now().plusDays(1));
+        for (int c = 0; c < 20; c++) {
+            storage.availability().add("Caregiver" + c, date);
+        }
+        Set<String> claimed = new HashSet<>();
+        for (int i = 0; i < 20; i++) {
+            assertTrue(claimed.add(storage.appointments().reserve("p" + i, date, VACCINE)
+                    .getAppointment().getCaregiverName()));
+        }
+        assertEquals(AppointmentRepository.Outcome.NO_CAREGIVER,
+                storage.appointments().reserve("p20", date, VACCINE).getOutcome());
+    }
+
+    @Test
+    void leastLoadedCountsIgnoreCase() throws Exception {
+        CaregiverAssignment.LeastLoaded assignment = new CaregiverAssignment.LeastLoaded();
+        NavigableSet<String> caregivers = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+        caregivers.addAll(Set.of("alice", "bob"));
+        // storage counts under another spelling of the name
+        assertEquals("bob", assignment.claim(caregivers, () -> Map.of("ALICE", 2, "Bob", 1)));
+
+        // bob's claim rolled back under yet another spelling, bob is back to one and still the least loaded
+        assignment.completed("BOB", false);
+        caregivers.add("bob");
+        assertEquals("bob", assignment.claim(caregivers, Map::of));
+    }
+}
@@ -0,0 +1,171 @@
+package scheduler.db;
+
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.ValueSource;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+// Many threads reserving at once, with fewer caregivers and doses than requests, must never hand a
+// caregiver's date or a dose to two reservations. Runs against MemoryStorage, and against JdbcStorage
+// when a database is configured (Server, DBName, UserID and Password, as for the scheduler). The database
+// run uses names of its own and dates far ahead, and deletes its rows afterwards.
+class ConcurrentReserveTest {
+
+    private static final int THREADS = 16;
+    private static final int RESERVATIONS_PER_THREAD = 200;
+    private static final int DATES = 5;
+    private static final int CAREGIVERS = 40;
+    private static final int DOSES = 150;
+
+    @ParameterizedTest
+    @ValueSource(strings = {"memory", "jdbc"})
+    void concurrentReservationsNeverDoubleBookOrOverdraw(String backend) throws Exception {
+        boolean database = backend.equals("jdbc");
+        assumeTrue(!database || System.getenv("Server") != null, "no database configured");
+        Storage storage = database ? new JdbcStorage() : new MemoryStorage();
+        String prefix = "reserve" + Long.toString(System.nanoTime(), 36) + "-";
+        try {
+            reserveConcurrently(storage, prefix,
+                    LocalDate.now().plusDays(database ? 1 + ThreadLocalRandom.current().nextInt(1_000_000) : 1));
+        } finally {
+            if (database) {
+                deleteRows(prefix);
+            }
+        }
+    }
+
+    private static void reserveConcurrently(Storage storage, String prefix, LocalDate first) throws Exception {
+        String vaccine = prefix + "vaccine";
+        List<Date> dates = new ArrayList<>();
+        for (int d = 0; d < DATES; d++) {
+            dates.add(Date.valueOf(first.plusDays(d)));
+        }
+        // the tables' foreign keys want the accounts
+        for (int c = 0; c < CAREGIVERS; c++) {
+            createAccount(storage, AccountRepository.Kind.CAREGIVER, prefix + "caregiver" + c);
+            storage.availability().addAll(prefix + "caregiver" + c, dates);
+        }
+        for (int t = 0; t < THREADS; t++) {
+            createAccount(storage, AccountRepository.Kind.PATIENT, prefix + "patient" + t);
+        }
+        storage.inventory().create(vaccine, DOSES);
+
+        AppointmentRepository appointments = storage.appointments();
+        List<AppointmentRepository.Appointment> booked = Collections.synchronizedList(new ArrayList<>());
+        AtomicInteger refused = new AtomicInteger();
+        AtomicBoolean running = new AtomicBoolean(true);
+        AtomicBoolean overdrawn = new AtomicBoolean();
+        CountDownLatch start = new CountDownLatch(1);
+
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS + 1);
+        try {
+            // watches the dose count for the whole run, it must never be seen below zero
+            Future<?> watcher = pool.submit((Callable<Void>) () -> {
+                while (running.get()) {
+                    Integer doses = storage.inventory().doses(vaccine);
+                    if (doses == null || doses < 0) {
+                        overdrawn.set(true);
+                    }
+                }
+                return null;
+            });
+            List<Future<?>> reservers = new ArrayList<>();
+            for (int t = 0; t < THREADS; t++) {
+                int thread = t;
+                reservers.add(pool.submit((Callable<Void>) () -> {
+                    start.await();
+                    for (int i = 0; i < RESERVATIONS_PER_THREAD; i++) {
+                        Date date = dates.get(ThreadLocalRandom.current().nextInt(DATES));
+                        AppointmentRepository.Reservation reservation =
+                                appointments.reserve(prefix + "patient" + thread, date, vaccine);
+                        if (reservation.getAppointment() != null) {
+                            booked.add(reservation.getAppointment());
+                        } else {
+                            refused.incrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            start.countDown();
+            for (Future<?> reserver : reservers) {
+                reserver.get();
+            }
+            running.set(false);
+            watcher.get();
+        } finally {
+            pool.shutdownNow();
+        }
+
+        assertFalse(overdrawn.get(), "dose count went below zero");
+        assertEquals(THREADS * RESERVATIONS_PER_THREAD, booked.size() + refused.get());
+        // the doses run out before the caregivers' dates do
+        assertEquals(DOSES, booked.size());
+        assertEquals(0, storage.inventory().doses(vaccine));
+
+        Set<String> slots = new HashSet<>();
+        Set<Long> ids = new HashSet<>();
+        for (AppointmentRepository.Appointment appointment : booked) {
+            assertTrue(slots.add(appointment.getCaregiverName() + " " + appointment.getTime()),
+                    appointment.getCaregiverName() + " is double-booked on " + appointment.getTime());
+            assertTrue(ids.add(appointment.getApptId()), "appointment ID " + appointment.getApptId() + " reused");
+            assertFalse(storage.availability().caregivers(appointment.getTime())
+                    .contains(appointment.getCaregiverName()), "a booked caregiver is still available");
+        }
+        // every date a caregiver was not booked for is still available
+        int available = 0;
+        for (Date date : dates) {
+            available += storage.availability().caregivers(date).size();
+        }
+        assertEquals(CAREGIVERS * DATES - DOSES, available);
+    }
+
+    private static void createAccount(Storage storage, AccountRepository.Kind kind, String username)
+            throws SQLException {
+        storage.accounts().create(kind, new AccountRepository.Credentials(username, new byte[16], new byte[16], 1, 16));
+    }
+
+    // Removes what a database run added
+    private static void deleteRows(String prefix) throws SQLException {
+        String[] deletes = {
+                "DELETE FROM Appointment WHERE VName LIKE ?",
+                "DELETE FROM Availabilities WHERE Username LIKE ?",
+                "DELETE FROM Vaccines WHERE Name LIKE ?",
+                "DELETE FROM Caregivers WHERE Username LIKE ?",
+                "DELETE FROM Patients WHERE Username LIKE ?"};
+        ConnectionManager cm = new ConnectionManager();
+        Connection con = cm.createConnection();
+        try {
+            for (String delete : deletes) {
+                try (PreparedStatement statement = con.prepareStatement(delete)) {
+                    statement.setString(1, prefix + "%");
+                    statement.executeUpdate();
+                }
+            }
+        } finally {
+            cm.closeConnection();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.SortedMap;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// DoseCache matches vaccine names ignoring case, like the storage behind it, and a reload keeps up with
+// the changes committed around it
+class DoseCacheTest {
+
+    @Test
+    void vaccineNamesIgnoreCase() throws Exception {
+        Storage.get().inventory().create("Novavax", 2);
+        DoseCache.reload();
+
+        DoseCache.add("novavax", 3);
+        assertEquals(5, DoseCache.get("NOVAVAX"));
+        assertTrue(WriteBehind.hasVaccine("nOvAvAx"));
+        assertTrue(WriteBehind.takeDose("NOVAVAX"));
+        assertEquals(1, WriteBehind.debited("Novavax"));
+
+        // one entry, under the name the vaccine was created with
+        SortedMap<String, Integer> snapshot = DoseCache.snapshot();
+        assertEquals(4, snapshot.get("novavax"));
+        assertEquals(1, snapshot.keySet().stream().filter("Novavax"::equals).count());
+        assertEquals(1, snapshot.keySet().stream().filter("novavax"::equalsIgnoreCase).count());
+        WriteBehind.releaseDose("novavax");
+        assertEquals(0, WriteBehind.debited("Novavax"));
+    }
+
+    @Test
+    void reloadKeepsUpWithCommittedChanges() throws Exception {
+        InventoryRepository inventory = Storage.get().inventory();
+        inventory.create("Sputnik", 2);
+        DoseCache.reload();
+
+        // committed and applied while the cache is cold, and then read again by the reload
+        DoseCache.invalidate();
+        inventory.addDoses("Sputnik", 3);
+        DoseCache.add("Sputnik", 3);
+        DoseCache.reload();
+        assertEquals(5, DoseCache.get("Sputnik"));
+
+        // applied between two reloads, the change stays in the count the next reload corrects
+        inventory.addDoses("Sputnik", 4);
+        DoseCache.add("Sputnik", 4);
+        assertEquals(9, DoseCache.get("Sputnik"));
+        DoseCache.reload();
+        assertEquals(inventory.doses("Sputnik"), DoseCache.get("Sputnik"));
+    }
+}
@@ -0,0 +1,74 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.sql.SQLException;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Names compare case-insensitively in MemoryStorage, like in the database under its default collation
+class MemoryStorageTest {
+
+    @Test
+    void vaccineNamesIgnoreCase() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        storage.inventory().create("Pfizer", 2);
+        assertThrows(SQLException.class, () -> storage.inventory().create("PFIZER", 1));
+        assertEquals(5, storage.inventory().addDoses("pfizer", 3));
+        assertEquals(5, storage.inventory().doses("pFiZeR"));
+        // listed under the name it was created with
+        assertEquals(Map.of("Pfizer", 5), storage.inventory().all());
+
+        Date date = Date.valueOf(LocalDate.now().plusDays(1));
+        storage.availability().add("caregiver", date);
+        assertEquals(AppointmentRepository.Outcome.RESERVED,
+                storage.appointments().reserve("patient", date, "PFIZER").getOutcome());
+        assertEquals(4, storage.inventory().doses("Pfizer"));
+    }
+
+    @Test
+    void caregiverNamesIgnoreCase() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        Date date = Date.valueOf(LocalDate.now().plusDays(1));
+        storage.availability().add("Alice", date);
+        assertThrows(SQLException.class, () -> storage.availability().add("alice", date));
+        assertEquals(0, storage.availability().addAll("ALICE", List.of(date)));
+        assertEquals(1, storage.availability().caregivers(date).size());
+    }
+
+    @Test
+    void waitlistRequestsIgnoreCase() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        Date date = Date.valueOf(LocalDate.now().plusDays(1));
+        assertTrue(storage.appointments().addToWaitlist("Patient", date, "Pfizer"));
+        assertFalse(storage.appointments().addToWaitlist("patient", date, "PFIZER"));
+        assertTrue(storage.appointments().leaveWaitlist("PATIENT", date, "pfizer"));
+    }
+
+    @Test
+    void pagesContinuePastACancelledAppointment() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        storage.inventory().create("Pfizer", 10);
+        Date first = Date.valueOf(LocalDate.now().plusDays(1));
+        Date second = Date.valueOf(LocalDate.now().plusDays(2));
+        storage.availability().add("caregiver", first);
+        storage.availability().add("caregiver", second);
+        AppointmentRepository appointments = storage.appointments();
+        long cancelled = appointments.reserve("patient", first, "Pfizer").getAppointment().getApptId();
+        long next = appointments.reserve("patient", second, "Pfizer").getAppointment().getApptId();
+
+        assertEquals(cancelled, appointments.find("patient", true, first, -1, 1).get(0).getApptId());
+        assertTrue(appointments.cancel(cancelled, "patient", true) != null);
+        // the page after the cancelled appointment still starts at the next one
+        List<AppointmentRepository.Appointment> page = appointments.find("patient", true, first, cancelled, 1);
+        assertEquals(1, page.size());
+        assertEquals(next, page.get(0).getApptId());
+    }
+}
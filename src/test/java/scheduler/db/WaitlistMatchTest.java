@@ -0,0 +1,120 @@
+package scheduler.db;
+
+import org.junit.jupiter.api.Test;
+
+import java.sql.Date;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+// Waitlist matching against MemoryStorage: requests that cannot be served must not hold back those
+// queued after them, and a patient who books by hand is not matched again
+class WaitlistMatchTest {
+
+    private static final String VACCINE = "Pfizer";
+
+    @Test
+    void requestsWithoutSupplyDoNotHoldBackLaterOnes() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        Date full = Date.valueOf(LocalDate.now().plusDays(1));
+        Date open = Date.valueOf(LocalDate.now().plusDays(2));
+        storage.inventory().create(VACCINE, 10);
+        storage.availability().add("caregiver", open);
+
+        AppointmentRepository appointments = storage.appointments();
+        // more than a batch of requests for a date nobody is available on, queued first
+        for (int i = 0; i < 250; i++) {
+            assertTrue(appointments.addToWaitlist("early" + i, full, VACCINE));
+        }
+        assertTrue(appointments.addToWaitlist("late", open, VACCINE));
+
+        AppointmentRepository.Match match = appointments.matchWaitlist(Collections.emptyList(),
+                Collections.emptyList(), 0);
+        List<AppointmentRepository.Appointment> booked = match.getBooked();
+        assertEquals(1, booked.size());
+        assertEquals("late", booked.get(0).getPatientName());
+        assertEquals(-1, appointments.matchWaitlist(Collections.emptyList(), Collections.emptyList(),
+                match.getLast()).getLast());
+    }
+
+    @Test
+    void bookingByHandLeavesTheWaitlist() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        Date date = Date.valueOf(LocalDate.now().plusDays(1));
+        storage.inventory().create(VACCINE, 10);
+        storage.availability().add("caregiver1", date);
+        storage.availability().add("caregiver2", date);
+
+        AppointmentRepository appointments = storage.appointments();
+        assertTrue(appointments.addToWaitlist("patient", date, VACCINE));
+        assertTrue(appointments.reserve("patient", date, VACCINE).getAppointment() != null);
+
+        assertTrue(appointments.matchWaitlist(Collections.singleton(date), Collections.emptyList(), 0)
+                .getBooked().isEmpty());
+        assertFalse(appointments.leaveWaitlist("patient", date, VACCINE));
+        assertEquals(1, storage.availability().caregivers(date).size());
+        assertEquals(9, storage.inventory().doses(VACCINE));
+    }
+
+    @Test
+    void leavingTheWaitlist() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        Date date = Date.valueOf(LocalDate.now().plusDays(1));
+        storage.inventory().create(VACCINE, 10);
+
+        AppointmentRepository appointments = storage.appointments();
+        assertTrue(appointments.addToWaitlist("patient", date, VACCINE));
+        assertTrue(appointments.leaveWaitlist("patient", date, VACCINE));
+        assertFalse(appointments.leaveWaitlist("patient", date, VACCINE));
+
+        storage.availability().add("caregiver", date);
+        assertTrue(appointments.matchWaitlist(Collections.singleton(date), Collections.emptyList(), 0)
+                .getBooked().isEmpty());
+        // and can queue again
+        assertTrue(appointments.addToWaitlist("patient", date, VACCINE));
+    }
+
+    @Test
+    void joiningAndLeavingConcurrentlyLeavesNoOrphans() throws Exception {
+        MemoryStorage storage = new MemoryStorage();
+        Date date = Date.valueOf(LocalDate.now().plusDays(1));
+        storage.inventory().create(VACCINE, 10);
+        AppointmentRepository appointments = storage.appointments();
+
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0; t < 4; t++) {
+                boolean join = t % 2 == 0;
+                futures.add(pool.submit(() -> {
+                    for (int i = 0; i < 100_000; i++) {
+                        if (join) {
+                            appointments.addToWaitlist("patient", date, VACCINE);
+                        } else {
+                            appointments.leaveWaitlist("patient", date, VACCINE);
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        // whatever the interleaving, at most the one request is queued, and leaving removes it
+        appointments.leaveWaitlist("patient", date, VACCINE);
+        storage.availability().add("caregiver", date);
+        assertTrue(appointments.waiting(Collections.emptyList(), Collections.emptyList(), 0).isEmpty());
+    }
+}